@@ -0,0 +1,129 @@
+/*
+ *  Copyright (C) 2011 Stephane Godbillon
+ *  
+ *  This file is part of BytecodeParser. See the README file in the root
+ *  directory of this project.
+ *
+ *  BytecodeParser is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+
+ *  BytecodeParser is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with BytecodeParser.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bytecodeparser.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javassist.ClassPool;
+import javassist.CtMethod;
+import javassist.NotFoundException;
+import javassist.bytecode.BadBytecode;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import bytecodeparser.CodeParser;
+import bytecodeparser.OpHandler;
+import bytecodeparser.analysis.LocalVariable;
+import bytecodeparser.analysis.decoders.DecodedMethodInvocationOp;
+import bytecodeparser.analysis.opcodes.Op;
+import bytecodeparser.analysis.stack.StackAnalyzer;
+import bytecodeparser.analysis.stack.StackAnalyzer.Frame;
+import bytecodeparser.analysis.stack.StackAnalyzer.Frames;
+
+import test.SyntheticMethodGenerator;
+
+/**
+ * Measures the parser and the analyzer hot paths on methods made by the SyntheticMethodGenerator, up to the 64KB code limit.
+ * 
+ * The shapes are:
+ * <ul>
+ * <li>straight: int statements on 8 locals and a few varargs calls, without any branch,</li>
+ * <li>branchy: nested switches and try/catch blocks,</li>
+ * <li>wide: 300 int locals, so most of the accesses are wide, with long/double arithmetic and varargs calls.</li>
+ * </ul>
+ * Run it through the Benchmarks main class to get the allocation rates as well.
+ * @author Stephane Godbillon
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AnalysisBenchmark {
+	@Param({ "1024", "8192", "65535" })
+	public int codeLength;
+	
+	@Param({ "straight", "branchy", "wide" })
+	public String shape;
+	
+	CtMethod method;
+	Frame[] invocations;
+	
+	@Setup
+	public void setup() throws Exception {
+		SyntheticMethodGenerator generator = new SyntheticMethodGenerator().setMaxCodeLength(codeLength);
+		if("branchy".equals(shape))
+			generator.setSwitches(4, 2).setTryCatchEvery(7);
+		else if("wide".equals(shape))
+			generator.setNbIntLocals(300).setLongDoubleEvery(5).setVarargsEvery(11);
+		else if("straight".equals(shape))
+			generator.setVarargsEvery(16);
+		else throw new IllegalArgumentException("unknown shape " + shape);
+		ClassPool pool = new ClassPool(true);
+		method = generator.generate(pool, "bytecodeparser.benchmarks.generated.Synthetic_" + shape + "_" + codeLength);
+		
+		List<Frame> frames = new ArrayList<Frame>();
+		for(Frame frame : new StackAnalyzer(method).analyze())
+			if(frame.decodedOp instanceof DecodedMethodInvocationOp)
+				frames.add(frame);
+		invocations = frames.toArray(new Frame[frames.size()]);
+	}
+	
+	@Benchmark
+	public void parse(final Blackhole blackhole) throws BadBytecode {
+		new CodeParser(method).parse(new OpHandler() {
+			@Override
+			public void handle(Op op, int index) {
+				blackhole.consume(op);
+			}
+		});
+	}
+	
+	@Benchmark
+	public Frames analyze() throws BadBytecode {
+		return new StackAnalyzer(method).analyze();
+	}
+	
+	@Benchmark
+	public void resolveParameters(Blackhole blackhole) {
+		for(Frame frame : invocations)
+			blackhole.consume(DecodedMethodInvocationOp.resolveParameters(frame));
+	}
+	
+	@Benchmark
+	public Object findVariables() throws NotFoundException {
+		return LocalVariable.findVariables(method);
+	}
+}
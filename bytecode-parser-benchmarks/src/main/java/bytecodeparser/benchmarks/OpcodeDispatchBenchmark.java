@@ -0,0 +1,112 @@
+/*
+ *  Copyright (C) 2011 Stephane Godbillon
+ *  
+ *  This file is part of BytecodeParser. See the README file in the root
+ *  directory of this project.
+ *
+ *  BytecodeParser is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+
+ *  BytecodeParser is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with BytecodeParser.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bytecodeparser.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtMethod;
+import javassist.bytecode.AccessFlag;
+import javassist.bytecode.BadBytecode;
+import javassist.bytecode.Bytecode;
+import javassist.bytecode.CodeIterator;
+import javassist.bytecode.MethodInfo;
+import javassist.bytecode.Opcode;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import bytecodeparser.CodeParser;
+import bytecodeparser.OpHandler;
+import bytecodeparser.analysis.Opcodes;
+import bytecodeparser.analysis.opcodes.Op;
+
+/**
+ * Compares the opcode dispatch through the Opcodes.OPCODES map with the Opcodes.get() table,
+ * on a method made of 64K one-byte instructions.
+ * @author Stephane Godbillon
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OpcodeDispatchBenchmark {
+	CtMethod method;
+	int[] opcodes;
+	
+	@Setup
+	public void setup() throws Exception {
+		ClassPool pool = new ClassPool(true);
+		CtClass clazz = pool.makeClass("bytecodeparser.benchmarks.generated.Dispatch64K");
+		Bytecode code = new Bytecode(clazz.getClassFile().getConstPool(), 1, 0);
+		// 32766 * 2 + 1 = 65533 instructions, the biggest even count that fits in a code attribute
+		for(int i = 0; i < 32766; i++) {
+			code.addOpcode(Opcode.ICONST_0);
+			code.addOpcode(Opcode.POP);
+		}
+		code.addOpcode(Opcode.RETURN);
+		MethodInfo methodInfo = new MethodInfo(clazz.getClassFile().getConstPool(), "dispatch", "()V");
+		methodInfo.setAccessFlags(AccessFlag.PUBLIC | AccessFlag.STATIC);
+		methodInfo.setCodeAttribute(code.toCodeAttribute());
+		clazz.getClassFile().addMethod(methodInfo);
+		method = clazz.getDeclaredMethod("dispatch");
+		
+		CodeIterator iterator = methodInfo.getCodeAttribute().iterator();
+		opcodes = new int[methodInfo.getCodeAttribute().getCodeLength()];
+		int n = 0;
+		while(iterator.hasNext())
+			opcodes[n++] = iterator.byteAt(iterator.next());
+	}
+	
+	@Benchmark
+	public void mapDispatch(Blackhole blackhole) {
+		for(int opcode : opcodes)
+			blackhole.consume(Opcodes.OPCODES.get(opcode));
+	}
+	
+	@Benchmark
+	public void tableDispatch(Blackhole blackhole) {
+		for(int opcode : opcodes)
+			blackhole.consume(Opcodes.get(opcode));
+	}
+	
+	@Benchmark
+	public void parse(final Blackhole blackhole) throws BadBytecode {
+		new CodeParser(method).parse(new OpHandler() {
+			@Override
+			public void handle(Op op, int index) {
+				blackhole.consume(op);
+			}
+		});
+	}
+}
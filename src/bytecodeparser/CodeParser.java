@@ -50,7 +50,7 @@ public class CodeParser {
 			if(stop)
 				break;
 			int index = context.iterator.next();
-			Op op = Opcodes.OPCODES.get(context.iterator.byteAt(index)).init(context, index);
+			Op op = Opcodes.get(context.iterator.byteAt(index)).init(context, index);
 			opHandler.handle(op, index);
 		}
 	}
@@ -0,0 +1,282 @@
+/*
+ *  Copyright (C) 2011 Stephane Godbillon
+ *  
+ *  This file is part of BytecodeParser. See the README file in the root
+ *  directory of this project.
+ *
+ *  BytecodeParser is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+
+ *  BytecodeParser is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with BytecodeParser.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bytecodeparser;
+
+import static bytecodeparser.analysis.stack.Stack.StackElementLength.DOUBLE;
+import static bytecodeparser.analysis.stack.Stack.StackElementLength.ONE;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.NotFoundException;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.Descriptor;
+import bytecodeparser.analysis.stack.Stack.StackElementLength;
+
+/**
+ * Caches what the decoders derive from a constant pool, so that the behaviors of a class sharing the same constant pool
+ * do not decode the same entries again.
+ * 
+ * The entries are resolved on the first request and kept by constant pool index. The cache remains valid if entries
+ * are appended to the constant pool (javassist never changes the existing ones).
+ * The stack shapes of the method and field refs are parsed from their descriptors, without looking up any class
+ * in the class pool; the CtClass of the parameter and return types are only resolved when requested.
+ * @author Stephane Godbillon
+ *
+ */
+public class ConstPoolCache {
+	/**
+	 * The cached constant pool.
+	 */
+	public final ConstPool constPool;
+	/**
+	 * The pool in which the types of the descriptors are resolved.
+	 */
+	public final ClassPool classPool;
+	private MethodRef[] methodRefs;
+	private FieldRef[] fieldRefs;
+	private String[] classInfos;
+	private Object[] ldcValues;
+	
+	public ConstPoolCache(ConstPool constPool, ClassPool classPool) {
+		this.constPool = constPool;
+		this.classPool = classPool;
+	}
+	
+	/**
+	 * Gets the method (or interface method) reference at the given index.
+	 */
+	public MethodRef getMethodRef(int index) {
+		methodRefs = ensureCapacity(methodRefs, index);
+		MethodRef ref = methodRefs[index];
+		if(ref == null)
+			ref = methodRefs[index] = new MethodRef(constPool, classPool, index);
+		return ref;
+	}
+	
+	/**
+	 * Gets the field reference at the given index.
+	 */
+	public FieldRef getFieldRef(int index) {
+		fieldRefs = ensureCapacity(fieldRefs, index);
+		FieldRef ref = fieldRefs[index];
+		if(ref == null)
+			ref = fieldRefs[index] = new FieldRef(constPool, index);
+		return ref;
+	}
+	
+	/**
+	 * Gets the descriptor of the field reference at the given index.
+	 */
+	public String getFieldDescriptor(int index) {
+		return getFieldRef(index).descriptor;
+	}
+	
+	/**
+	 * Gets the name of the class at the given index, as returned by ConstPool.getClassInfo().
+	 */
+	public String getClassInfo(int index) {
+		classInfos = ensureCapacity(classInfos, index);
+		String classInfo = classInfos[index];
+		if(classInfo == null)
+			classInfo = classInfos[index] = constPool.getClassInfo(index);
+		return classInfo;
+	}
+	
+	/**
+	 * Gets the value of the constant at the given index, as returned by ConstPool.getLdcValue().
+	 * @return the value, or null if the constant is not a number nor a string.
+	 */
+	public Object getLdcValue(int index) {
+		ldcValues = ensureCapacity(ldcValues, index);
+		Object value = ldcValues[index];
+		if(value == null)
+			value = ldcValues[index] = constPool.getLdcValue(index);
+		return value;
+	}
+	
+	private MethodRef[] ensureCapacity(MethodRef[] array, int index) {
+		if(array != null && index < array.length)
+			return array;
+		MethodRef[] result = new MethodRef[Math.max(constPool.getSize(), index + 1)];
+		if(array != null)
+			System.arraycopy(array, 0, result, 0, array.length);
+		return result;
+	}
+	
+	private FieldRef[] ensureCapacity(FieldRef[] array, int index) {
+		if(array != null && index < array.length)
+			return array;
+		FieldRef[] result = new FieldRef[Math.max(constPool.getSize(), index + 1)];
+		if(array != null)
+			System.arraycopy(array, 0, result, 0, array.length);
+		return result;
+	}
+	
+	private String[] ensureCapacity(String[] array, int index) {
+		if(array != null && index < array.length)
+			return array;
+		String[] result = new String[Math.max(constPool.getSize(), index + 1)];
+		if(array != null)
+			System.arraycopy(array, 0, result, 0, array.length);
+		return result;
+	}
+	
+	private Object[] ensureCapacity(Object[] array, int index) {
+		if(array != null && index < array.length)
+			return array;
+		Object[] result = new Object[Math.max(constPool.getSize(), index + 1)];
+		if(array != null)
+			System.arraycopy(array, 0, result, 0, array.length);
+		return result;
+	}
+	
+	/**
+	 * Gets the length of the stack element of a field type descriptor, null for void.
+	 */
+	public static StackElementLength lengthOf(String descriptor) {
+		char c = descriptor.charAt(0);
+		if(c == 'V')
+			return null;
+		return c == 'J' || c == 'D' ? DOUBLE : ONE;
+	}
+	
+	/**
+	 * Splits a method descriptor into the descriptors of its parameters.
+	 */
+	public static String[] parameterDescriptors(String descriptor) {
+		List<String> result = new ArrayList<String>();
+		int i = 1;
+		while(descriptor.charAt(i) != ')') {
+			int start = i;
+			while(descriptor.charAt(i) == '[')
+				i++;
+			if(descriptor.charAt(i) == 'L')
+				i = descriptor.indexOf(';', i);
+			i++;
+			result.add(descriptor.substring(start, i));
+		}
+		return result.toArray(new String[result.size()]);
+	}
+	
+	/**
+	 * A method reference. Shared between the decoded ops: the arrays must not be modified.
+	 * @author Stephane Godbillon
+	 *
+	 */
+	public static class MethodRef {
+		public final boolean interfaceMethod;
+		public final String declaringClassName;
+		public final String name;
+		public final String descriptor;
+		/**
+		 * The descriptors of the parameters, in declaration order.
+		 */
+		public final String[] parameterDescriptors;
+		public final String returnDescriptor;
+		/**
+		 * The pops of the parameters, the last parameter first (the receiver of an instance method is not included).
+		 */
+		public final StackElementLength[] pops;
+		/**
+		 * The length of the returned value, null if void.
+		 */
+		public final StackElementLength returnLength;
+		/**
+		 * States if the method is a primitive wrapper valueOf(), which returns a boxed copy of its argument.
+		 */
+		public final boolean autoboxing;
+		private final ClassPool classPool;
+		private CtClass[] parameterTypes;
+		private CtClass returnType;
+		
+		MethodRef(ConstPool constPool, ClassPool classPool, int index) {
+			this.classPool = classPool;
+			interfaceMethod = constPool.getTag(index) == ConstPool.CONST_InterfaceMethodref;
+			descriptor = interfaceMethod ? constPool.getInterfaceMethodrefType(index) : constPool.getMethodrefType(index);
+			name = interfaceMethod ? constPool.getInterfaceMethodrefName(index) : constPool.getMethodrefName(index);
+			declaringClassName = interfaceMethod ? constPool.getInterfaceMethodrefClassName(index) : constPool.getMethodrefClassName(index);
+			parameterDescriptors = parameterDescriptors(descriptor);
+			returnDescriptor = descriptor.substring(descriptor.indexOf(')') + 1);
+			pops = new StackElementLength[parameterDescriptors.length];
+			for(int i = parameterDescriptors.length - 1, j = 0; i >= 0; i--, j++)
+				pops[j] = lengthOf(parameterDescriptors[i]);
+			returnLength = lengthOf(returnDescriptor);
+			autoboxing = name.equals("valueOf") && isWrapperValueOf(declaringClassName, descriptor);
+		}
+		
+		/**
+		 * Gets the parameter types, resolving them in the class pool on the first call.
+		 * @throws NotFoundException if a type cannot be found in the class pool.
+		 */
+		public CtClass[] getParameterTypes() throws NotFoundException {
+			if(parameterTypes == null)
+				parameterTypes = Descriptor.getParameterTypes(descriptor, classPool);
+			return parameterTypes;
+		}
+		
+		/**
+		 * Gets the return type, resolving it in the class pool on the first call.
+		 * @throws NotFoundException if the type cannot be found in the class pool.
+		 */
+		public CtClass getReturnType() throws NotFoundException {
+			if(returnType == null)
+				returnType = Descriptor.getReturnType(descriptor, classPool);
+			return returnType;
+		}
+		
+		private static boolean isWrapperValueOf(String declaringClassName, String descriptor) {
+			return "java.lang.Boolean".equals(declaringClassName) && descriptor.equals("(Z)Ljava/lang/Boolean;") ||
+				"java.lang.Byte".equals(declaringClassName) && descriptor.equals("(B)Ljava/lang/Byte;") ||
+				"java.lang.Character".equals(declaringClassName) && descriptor.equals("(C)L/java/lang/Character;") ||
+				"java.lang.Short".equals(declaringClassName) && descriptor.equals("(S)Ljava/lang/Short;") ||
+				"java.lang.Integer".equals(declaringClassName) && descriptor.equals("(I)Ljava/lang/Integer;") ||
+				"java.lang.Long".equals(declaringClassName) && descriptor.equals("(J)Ljava/lang/Long;") ||
+				"java.lang.Float".equals(declaringClassName) && descriptor.equals("(F)Ljava/lang/Float;") ||
+				"java.lang.Double".equals(declaringClassName) && descriptor.equals("(D)Ljava/lang/Double;");
+		}
+	}
+	
+	/**
+	 * A field reference.
+	 * @author Stephane Godbillon
+	 *
+	 */
+	public static class FieldRef {
+		public final String declaringClassName;
+		public final String name;
+		public final String descriptor;
+		/**
+		 * The length of the value of the field on the stack.
+		 */
+		public final StackElementLength length;
+		public final boolean primitive;
+		
+		FieldRef(ConstPool constPool, int index) {
+			declaringClassName = constPool.getFieldrefClassName(index);
+			name = constPool.getFieldrefName(index);
+			descriptor = constPool.getFieldrefType(index);
+			length = lengthOf(descriptor);
+			primitive = descriptor.charAt(0) != 'L' && descriptor.charAt(0) != '[';
+		}
+	}
+}
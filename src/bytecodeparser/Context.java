@@ -23,8 +23,11 @@ import java.util.Map;
 
 import javassist.CtBehavior;
 import javassist.NotFoundException;
+import javassist.bytecode.BadBytecode;
 import javassist.bytecode.ExceptionTable;
+import bytecodeparser.analysis.ControlFlowGraph;
 import bytecodeparser.analysis.LocalVariable;
+import bytecodeparser.analysis.LocalVariableIndex;
 
 /**
  * A context for parsing bytecode.
@@ -48,11 +51,20 @@ public class Context {
 	 * The exception handlers, from the ExceptionTable attribute.
 	 */
 	public final int[] exceptionHandlers;
+	/**
+	 * The cache of the constant pool of the behavior, possibly shared with the other behaviors of its class.
+	 */
+	public final ConstPoolCache constPoolCache;
+	private boolean descriptorOnly = false;
+	private ControlFlowGraph controlFlowGraph;
+	private LocalVariableIndex localVariableIndex;
 	
-	public Context(CtBehavior behavior, MultiMarkerCodeIterator iterator, Map<Integer, LocalVariable> localVariables) {
+	public Context(CtBehavior behavior, MultiMarkerCodeIterator iterator, Map<Integer, LocalVariable> localVariables, ConstPoolCache constPoolCache) {
 		this.behavior = behavior;
 		this.iterator = iterator;
 		this.localVariables = localVariables;
+		this.constPoolCache = constPoolCache;
+		iterator.context = this;
 		ExceptionTable exceptionTable = this.behavior.getMethodInfo().getCodeAttribute().getExceptionTable();
 		
 		if(exceptionTable != null) {
@@ -65,6 +77,10 @@ public class Context {
 		}
 	}
 	
+	public Context(CtBehavior behavior, MultiMarkerCodeIterator iterator, Map<Integer, LocalVariable> localVariables) {
+		this(behavior, iterator, localVariables, newConstPoolCache(behavior));
+	}
+	
 	public Context(CtBehavior behavior, MultiMarkerCodeIterator iterator) {
 		this(behavior, iterator, findLocalVariables(behavior));
 	}
@@ -73,6 +89,15 @@ public class Context {
 		this(behavior, new MultiMarkerCodeIterator(behavior.getMethodInfo().getCodeAttribute()), findLocalVariables(behavior));
 	}
 	
+	/**
+	 * Creates a context sharing the given cache, which must be the one of the constant pool of the behavior.
+	 */
+	public Context(CtBehavior behavior, ConstPoolCache constPoolCache) {
+		this(behavior, new MultiMarkerCodeIterator(behavior.getMethodInfo().getCodeAttribute()), findLocalVariables(behavior), constPoolCache);
+		if(constPoolCache.constPool != behavior.getMethodInfo().getConstPool())
+			throw new IllegalArgumentException("the cache does not match the constant pool of " + behavior.getLongName());
+	}
+	
 	/**
 	 * States if the given index is a start of an exception handler.
 	 * @param index
@@ -84,6 +109,70 @@ public class Context {
 		return false;
 	}
 	
+	/**
+	 * States if the decoders work from the descriptors only, without resolving the referenced types in the class pool.
+	 */
+	public boolean isDescriptorOnly() {
+		return descriptorOnly;
+	}
+	
+	/**
+	 * Sets the descriptor-only mode. In this mode, the method invocations do not resolve their parameter and return types
+	 * until they are requested, so the analysis does not need the referenced classes to be in the class pool.
+	 * @param descriptorOnly
+	 * @return this context for chaining.
+	 */
+	public Context setDescriptorOnly(boolean descriptorOnly) {
+		this.descriptorOnly = descriptorOnly;
+		return this;
+	}
+	
+	/**
+	 * Gets the control flow graph of the behavior, building it on the first call.
+	 * @throws BadBytecode if the bytecode of the behavior is wrong.
+	 */
+	public ControlFlowGraph getControlFlowGraph() throws BadBytecode {
+		if(controlFlowGraph == null)
+			controlFlowGraph = new ControlFlowGraph(behavior.getMethodInfo().getCodeAttribute());
+		return controlFlowGraph;
+	}
+	
+	/**
+	 * Updates the local variables after a gap has been inserted in the bytecode of the behavior.
+	 * Called by the code iterators when they insert some bytecode.
+	 * @param pos the index where the gap has been inserted.
+	 * @param length the length of the gap.
+	 */
+	public void bytecodeInserted(int pos, int length) {
+		bytecodeInserted(pos, length, false);
+	}
+	
+	/**
+	 * Updates the local variables after a gap has been inserted in the bytecode of the behavior.
+	 * @param pos the index where the gap has been inserted.
+	 * @param length the length of the gap.
+	 * @param exclusive true if the gap has been inserted exclusively (see CodeIterator.insertGapAt()).
+	 */
+	public void bytecodeInserted(int pos, int length, boolean exclusive) {
+		for(LocalVariable localVariable : localVariables.values())
+			localVariable.shift(pos, length, exclusive);
+		localVariableIndex = null;
+		controlFlowGraph = null;
+	}
+	
+	/**
+	 * Gets the index of the local variables of the behavior, building it on the first call.
+	 */
+	public LocalVariableIndex getLocalVariableIndex() {
+		if(localVariableIndex == null)
+			localVariableIndex = new LocalVariableIndex(localVariables);
+		return localVariableIndex;
+	}
+	
+	private static ConstPoolCache newConstPoolCache(CtBehavior behavior) {
+		return new ConstPoolCache(behavior.getMethodInfo().getConstPool(), behavior.getDeclaringClass().getClassPool());
+	}
+	
 	private static Map<Integer, LocalVariable> findLocalVariables(CtBehavior behavior) {
 		try {
 			return LocalVariable.findVariables(behavior);
@@ -19,18 +19,48 @@
  */
 package bytecodeparser;
 
-import java.util.ArrayList;
+import java.util.AbstractList;
+import java.util.List;
 
+import javassist.bytecode.BadBytecode;
 import javassist.bytecode.CodeAttribute;
 import javassist.bytecode.CodeIterator;
 
 /**
  * A code iterator that tracks more than one mark in the bytecode.
+ * 
+ * The marks are kept in primitive arrays sorted by position, so an insertion only shifts the marks after it, without any allocation.
  * @author Stephane Godbillon
  *
  */
 public class MultiMarkerCodeIterator extends CodeIterator {
-	public ArrayList<Integer> marks = new ArrayList<Integer>();
+	/**
+	 * A view of the marks, by id. Assigning another list to this field detaches it from the iterator.
+	 * @deprecated use putMark(), getMark() and getNbMarks() instead.
+	 */
+	@Deprecated
+	public List<Integer> marks = new MarkListView();
+	/**
+	 * The context using this iterator, notified of the insertions.
+	 */
+	Context context;
+	/**
+	 * The positions of the marks, sorted.
+	 */
+	private int[] positions = new int[8];
+	/**
+	 * The id of the mark at each slot of positions.
+	 */
+	private int[] ids = new int[8];
+	/**
+	 * The slot of each mark id.
+	 */
+	private int[] slots = new int[8];
+	private int nbMarks = 0;
+	/**
+	 * States if the gap being inserted is exclusive.
+	 */
+	private boolean exclusive = false;
 
 	protected MultiMarkerCodeIterator(CodeAttribute ca) {
 		super(ca);
@@ -39,29 +69,170 @@ public class MultiMarkerCodeIterator extends CodeIterator {
 	@Override
 	protected void updateCursors(int pos, int length) {
 		super.updateCursors(pos, length);
-		for(int i = 0; i < marks.size(); i++) {
-			int mark = marks.get(i);
-			if(mark > pos)
-				marks.set(i, mark + length);
+		for(int slot = firstSlotAfter(pos, nbMarks); slot < nbMarks; slot++)
+			positions[slot] += length;
+		if(context != null)
+			context.bytecodeInserted(pos, length, exclusive);
+	}
+	
+	/**
+	 * Inserts a gap, remembering if it is exclusive so that the local variables of the context are shifted like the LocalVariableTable.
+	 * All the insertions of CodeIterator go through this method.
+	 */
+	@Override
+	public Gap insertGapAt(int pos, int length, boolean exclusive) throws BadBytecode {
+		this.exclusive = exclusive;
+		try {
+			return super.insertGapAt(pos, length, exclusive);
+		} finally {
+			this.exclusive = false;
 		}
 	}
 	
+	/**
+	 * Reads the code of the attribute again, after it has been changed by another iterator (like the one of a FrameIterator).
+	 * The marks are left untouched.
+	 */
+	public void reload() {
+		bytecode = codeAttr.getCode();
+		endPos = codeAttr.getCodeLength();
+	}
+	
 	/**
 	 * Puts a mark on the given index in the bytecode.
 	 * @param index
 	 * @return the id of this mark, in order to get it later.
 	 */
 	public int putMark(int index) {
-		marks.add(index);
-		return marks.size() - 1;
+		if(nbMarks == positions.length) {
+			positions = grow(positions);
+			ids = grow(ids);
+			slots = grow(slots);
+		}
+		int id = nbMarks++;
+		place(id, index, id);
+		return id;
 	}
 	
 	/**
 	 * Gets the index in the bytecode tracked by the mark matching the given mark id.
 	 * @param mark the mark id.
 	 * @return the index of this mark.
+	 * @throws IndexOutOfBoundsException if there is no such mark.
 	 */
 	public int getMark(int mark) {
-		return marks.get(mark);
+		if(mark < 0 || mark >= nbMarks)
+			throw new IndexOutOfBoundsException("no mark " + mark + " (" + nbMarks + " marks)");
+		return positions[slots[mark]];
+	}
+	
+	/**
+	 * @return the number of marks put on this iterator.
+	 */
+	public int getNbMarks() {
+		return nbMarks;
+	}
+	
+	/**
+	 * Moves the given mark to another index.
+	 * @return the previous index of the mark.
+	 */
+	int moveMark(int mark, int index) {
+		int previous = getMark(mark);
+		int slot = slots[mark];
+		System.arraycopy(positions, slot + 1, positions, slot, nbMarks - slot - 1);
+		System.arraycopy(ids, slot + 1, ids, slot, nbMarks - slot - 1);
+		for(int s = slot; s < nbMarks - 1; s++)
+			slots[ids[s]] = s;
+		place(mark, index, nbMarks - 1);
+		return previous;
+	}
+	
+	/**
+	 * Removes the given mark. The ids of the following marks are decremented, like the indexes of a list.
+	 * @return the index of the removed mark.
+	 */
+	int removeMark(int mark) {
+		int previous = getMark(mark);
+		int slot = slots[mark];
+		System.arraycopy(positions, slot + 1, positions, slot, nbMarks - slot - 1);
+		System.arraycopy(ids, slot + 1, ids, slot, nbMarks - slot - 1);
+		nbMarks--;
+		for(int s = 0; s < nbMarks; s++) {
+			if(ids[s] > mark)
+				ids[s]--;
+			slots[ids[s]] = s;
+		}
+		return previous;
+	}
+	
+	/**
+	 * Places a mark among the count first slots, after the marks with the same index.
+	 */
+	private void place(int mark, int index, int count) {
+		int slot = firstSlotAfter(index, count);
+		System.arraycopy(positions, slot, positions, slot + 1, count - slot);
+		System.arraycopy(ids, slot, ids, slot + 1, count - slot);
+		positions[slot] = index;
+		ids[slot] = mark;
+		for(int s = slot; s <= count; s++)
+			slots[ids[s]] = s;
+	}
+	
+	/**
+	 * Gets the first slot among the count first ones whose mark is beyond the given index.
+	 */
+	private int firstSlotAfter(int index, int count) {
+		int low = 0, high = count;
+		while(low < high) {
+			int middle = (low + high) >>> 1;
+			if(positions[middle] <= index)
+				low = middle + 1;
+			else high = middle;
+		}
+		return low;
+	}
+	
+	private static int[] grow(int[] array) {
+		int[] result = new int[array.length * 2];
+		System.arraycopy(array, 0, result, 0, array.length);
+		return result;
+	}
+	
+	/**
+	 * List view of the marks, by id, kept for compatibility: every operation goes through the sorted mark arrays.
+	 */
+	private class MarkListView extends AbstractList<Integer> {
+		@Override
+		public Integer get(int mark) {
+			return getMark(mark);
+		}
+		
+		@Override
+		public Integer set(int mark, Integer index) {
+			return moveMark(mark, index);
+		}
+		
+		@Override
+		public void add(int mark, Integer index) {
+			if(mark != nbMarks)
+				throw new UnsupportedOperationException("marks can only be appended");
+			putMark(index);
+		}
+		
+		@Override
+		public Integer remove(int mark) {
+			return removeMark(mark);
+		}
+		
+		@Override
+		public void clear() {
+			nbMarks = 0;
+		}
+		
+		@Override
+		public int size() {
+			return nbMarks;
+		}
 	}
-}
+}
\ No newline at end of file
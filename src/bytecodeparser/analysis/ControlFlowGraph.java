@@ -0,0 +1,361 @@
+/*
+ *  Copyright (C) 2011 Stephane Godbillon
+ *  
+ *  This file is part of BytecodeParser. See the README file in the root
+ *  directory of this project.
+ *
+ *  BytecodeParser is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+
+ *  BytecodeParser is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with BytecodeParser.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bytecodeparser.analysis;
+
+import java.util.Arrays;
+
+import javassist.bytecode.BadBytecode;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.CodeIterator;
+import javassist.bytecode.ExceptionTable;
+import javassist.bytecode.Opcode;
+import bytecodeparser.analysis.opcodes.BranchOpCode;
+import bytecodeparser.analysis.opcodes.ExitOpcode;
+import bytecodeparser.analysis.opcodes.Op;
+import bytecodeparser.analysis.opcodes.SwitchOpcode;
+
+/**
+ * The basic blocks of a behavior's code and the edges between them.
+ * 
+ * Blocks are numbered in the order of their start index in the bytecode. Every lookup is backed by primitive arrays,
+ * so that getting the block of an instruction, the successors or the predecessors of a block is done in constant time.
+ * 
+ * @author Stephane Godbillon
+ *
+ */
+public class ControlFlowGraph {
+	/**
+	 * The indexes of the instructions, in bytecode order.
+	 */
+	private final int[] instructions;
+	/**
+	 * The ordinal of the instruction at each index of the bytecode, -1 if no instruction starts at this index.
+	 */
+	private final int[] ordinals;
+	/**
+	 * The block of each instruction, by ordinal.
+	 */
+	private final int[] blockOfInstruction;
+	/**
+	 * The ordinal of the first instruction of each block, plus the number of instructions as a last element.
+	 */
+	private final int[] blockFirstInstruction;
+	private final int[] successorOffsets, successors;
+	private final int[] predecessorOffsets, predecessors;
+	private final int[] handlerOffsets, handlers;
+	private final boolean[] isHandler;
+	
+	/**
+	 * Builds the control flow graph of the given code attribute.
+	 * @param codeAttribute
+	 * @throws BadBytecode if the bytecode is wrong.
+	 */
+	public ControlFlowGraph(CodeAttribute codeAttribute) throws BadBytecode {
+		int codeLength = codeAttribute.getCodeLength();
+		ExceptionTable exceptionTable = codeAttribute.getExceptionTable();
+		int nbTryBlocks = exceptionTable != null ? exceptionTable.size() : 0;
+		
+		// one pass over the bytecode: instructions, block starts and jumps
+		int[] instructions = new int[codeLength];
+		boolean[] starts = new boolean[codeLength + 1];
+		boolean[] fallsThrough = new boolean[codeLength];
+		IntList jumpSources = new IntList(), jumpTargets = new IntList();
+		int nbInstructions = 0;
+		CodeIterator iterator = codeAttribute.iterator();
+		boolean endOfBlock = true;
+		while(iterator.hasNext()) {
+			int index = iterator.next();
+			instructions[nbInstructions++] = index;
+			if(endOfBlock)
+				starts[index] = true;
+			int code = iterator.byteAt(index);
+			Op op = Opcodes.get(code);
+			endOfBlock = op instanceof BranchOpCode || op instanceof SwitchOpcode || op instanceof ExitOpcode;
+			fallsThrough[index] = !endOfBlock || op instanceof BranchOpCode && (((BranchOpCode) op).isConditional() || code == Opcode.JSR || code == Opcode.JSR_W);
+			if(op instanceof BranchOpCode && code != Opcode.RET) {
+				int jump = index + (code == Opcode.GOTO_W || code == Opcode.JSR_W ? iterator.s32bitAt(index + 1) : iterator.s16bitAt(index + 1));
+				addJump(index, jump, starts, jumpSources, jumpTargets);
+			} else if(op instanceof SwitchOpcode) {
+				int nextIndex = (index & ~3) + 4;
+				addJump(index, index + iterator.s32bitAt(nextIndex), starts, jumpSources, jumpTargets);
+				if(code == Opcode.TABLESWITCH) {
+					int low = iterator.s32bitAt(nextIndex + 4), high = iterator.s32bitAt(nextIndex + 8);
+					for(int i = 0; i < high - low + 1; i++)
+						addJump(index, index + iterator.s32bitAt(nextIndex + 12 + 4 * i), starts, jumpSources, jumpTargets);
+				} else {
+					int nbPairs = iterator.s32bitAt(nextIndex + 4);
+					for(int i = 0; i < nbPairs; i++)
+						addJump(index, index + iterator.s32bitAt(nextIndex + 12 + 8 * i), starts, jumpSources, jumpTargets);
+				}
+			}
+		}
+		for(int i = 0; i < nbTryBlocks; i++) {
+			starts[exceptionTable.startPc(i)] = true;
+			starts[exceptionTable.endPc(i)] = true;
+			starts[exceptionTable.handlerPc(i)] = true;
+		}
+		this.instructions = Arrays.copyOf(instructions, nbInstructions);
+		
+		// blocks
+		this.ordinals = new int[codeLength];
+		Arrays.fill(ordinals, -1);
+		this.blockOfInstruction = new int[nbInstructions];
+		IntList blockFirstInstruction = new IntList();
+		for(int ordinal = 0; ordinal < nbInstructions; ordinal++) {
+			int index = this.instructions[ordinal];
+			ordinals[index] = ordinal;
+			if(starts[index])
+				blockFirstInstruction.add(ordinal);
+			blockOfInstruction[ordinal] = blockFirstInstruction.size - 1;
+		}
+		int nbBlocks = blockFirstInstruction.size;
+		blockFirstInstruction.add(nbInstructions);
+		this.blockFirstInstruction = blockFirstInstruction.toArray();
+		
+		// edges
+		IntList edgeSources = new IntList(), edgeTargets = new IntList();
+		for(int i = 0; i < jumpSources.size; i++) {
+			edgeSources.add(getBlockAt(jumpSources.get(i)));
+			edgeTargets.add(getBlockAt(jumpTargets.get(i)));
+		}
+		for(int block = 0; block + 1 < nbBlocks; block++) {
+			if(fallsThrough[getBlockEnd(block)]) {
+				edgeSources.add(block);
+				edgeTargets.add(block + 1);
+			}
+		}
+		int[][] csr = toAdjacency(nbBlocks, edgeSources, edgeTargets);
+		this.successorOffsets = csr[0];
+		this.successors = csr[1];
+		csr = toAdjacency(nbBlocks, edgeTargets, edgeSources);
+		this.predecessorOffsets = csr[0];
+		this.predecessors = csr[1];
+		
+		// exception edges: a block within a try range may jump to the matching handler
+		IntList handlerSources = new IntList(), handlerTargets = new IntList();
+		this.isHandler = new boolean[nbBlocks];
+		for(int i = 0; i < nbTryBlocks; i++) {
+			int handler = getBlockAt(exceptionTable.handlerPc(i));
+			isHandler[handler] = true;
+			int end = exceptionTable.endPc(i) < codeLength ? getBlockAt(exceptionTable.endPc(i)) : nbBlocks;
+			for(int block = getBlockAt(exceptionTable.startPc(i)); block < end; block++) {
+				handlerSources.add(block);
+				handlerTargets.add(handler);
+			}
+		}
+		csr = toAdjacency(nbBlocks, handlerSources, handlerTargets);
+		this.handlerOffsets = csr[0];
+		this.handlers = csr[1];
+	}
+	
+	private static void addJump(int source, int target, boolean[] starts, IntList jumpSources, IntList jumpTargets) throws BadBytecode {
+		if(target < 0 || target >= starts.length - 1)
+			throw new BadBytecode("jump to an invalid index " + target + " at " + source);
+		starts[target] = true;
+		jumpSources.add(source);
+		jumpTargets.add(target);
+	}
+	
+	/**
+	 * Turns a list of edges into a compressed adjacency table: the targets of the node n are in
+	 * result[1][result[0][n]] to result[1][result[0][n + 1] - 1]. Duplicate edges are removed.
+	 */
+	private static int[][] toAdjacency(int nbNodes, IntList sources, IntList targets) {
+		int[] offsets = new int[nbNodes + 1];
+		for(int i = 0; i < sources.size; i++)
+			offsets[sources.get(i) + 1]++;
+		for(int n = 0; n < nbNodes; n++)
+			offsets[n + 1] += offsets[n];
+		int[] adjacency = new int[sources.size];
+		int[] cursors = Arrays.copyOf(offsets, nbNodes);
+		for(int i = 0; i < sources.size; i++)
+			adjacency[cursors[sources.get(i)]++] = targets.get(i);
+		// sort and deduplicate each node's targets, compacting the table
+		int size = 0;
+		int start = 0;
+		for(int n = 0; n < nbNodes; n++) {
+			int end = offsets[n + 1];
+			Arrays.sort(adjacency, start, end);
+			offsets[n] = size;
+			for(int i = start; i < end; i++)
+				if(i == start || adjacency[i] != adjacency[i - 1])
+					adjacency[size++] = adjacency[i];
+			start = end;
+		}
+		offsets[nbNodes] = size;
+		return new int[][] { offsets, Arrays.copyOf(adjacency, size) };
+	}
+	
+	/**
+	 * @return the number of basic blocks.
+	 */
+	public int getNbBlocks() {
+		return blockFirstInstruction.length - 1;
+	}
+	
+	/**
+	 * Gets the block containing the instruction at the given index.
+	 * @param index
+	 * @return the block, or -1 if no instruction starts at this index.
+	 */
+	public int getBlockAt(int index) {
+		if(index < 0 || index >= ordinals.length || ordinals[index] == -1)
+			return -1;
+		return blockOfInstruction[ordinals[index]];
+	}
+	
+	/**
+	 * @return the index of the first instruction of the given block.
+	 */
+	public int getBlockStart(int block) {
+		return instructions[blockFirstInstruction[block]];
+	}
+	
+	/**
+	 * @return the index of the last instruction of the given block.
+	 */
+	public int getBlockEnd(int block) {
+		return instructions[blockFirstInstruction[block + 1] - 1];
+	}
+	
+	/**
+	 * @return the ordinal of the first instruction of the given block.
+	 */
+	public int getBlockFirstOrdinal(int block) {
+		return blockFirstInstruction[block];
+	}
+	
+	/**
+	 * @return the ordinal of the last instruction of the given block.
+	 */
+	public int getBlockLastOrdinal(int block) {
+		return blockFirstInstruction[block + 1] - 1;
+	}
+	
+	/**
+	 * States if the given block is the start of an exception handler.
+	 */
+	public boolean isHandler(int block) {
+		return isHandler[block];
+	}
+	
+	/**
+	 * @return the number of successors of the given block, exception handlers excluded.
+	 */
+	public int getNbSuccessors(int block) {
+		return successorOffsets[block + 1] - successorOffsets[block];
+	}
+	
+	/**
+	 * @return the i-th successor of the given block.
+	 */
+	public int getSuccessor(int block, int i) {
+		return successors[successorOffsets[block] + i];
+	}
+	
+	/**
+	 * @return the number of predecessors of the given block, exception edges excluded.
+	 */
+	public int getNbPredecessors(int block) {
+		return predecessorOffsets[block + 1] - predecessorOffsets[block];
+	}
+	
+	/**
+	 * @return the i-th predecessor of the given block.
+	 */
+	public int getPredecessor(int block, int i) {
+		return predecessors[predecessorOffsets[block] + i];
+	}
+	
+	/**
+	 * @return the number of exception handlers the given block may jump to.
+	 */
+	public int getNbHandlers(int block) {
+		return handlerOffsets[block + 1] - handlerOffsets[block];
+	}
+	
+	/**
+	 * @return the block of the i-th exception handler the given block may jump to.
+	 */
+	public int getHandler(int block, int i) {
+		return handlers[handlerOffsets[block] + i];
+	}
+	
+	/**
+	 * @return the number of instructions of the code.
+	 */
+	public int getNbInstructions() {
+		return instructions.length;
+	}
+	
+	/**
+	 * @return the index in the bytecode of the instruction of the given ordinal.
+	 */
+	public int getInstruction(int ordinal) {
+		return instructions[ordinal];
+	}
+	
+	/**
+	 * Gets the ordinal of the instruction at the given index.
+	 * @param index
+	 * @return the ordinal, or -1 if no instruction starts at this index.
+	 */
+	public int getOrdinal(int index) {
+		if(index < 0 || index >= ordinals.length)
+			return -1;
+		return ordinals[index];
+	}
+	
+	@Override
+	public String toString() {
+		StringBuffer sb = new StringBuffer("ControlFlowGraph:");
+		for(int block = 0; block < getNbBlocks(); block++) {
+			sb.append("\n").append(block).append(" [").append(getBlockStart(block)).append(",").append(getBlockEnd(block)).append("]");
+			if(isHandler(block))
+				sb.append(" handler");
+			sb.append(" -> ").append(Arrays.toString(Arrays.copyOfRange(successors, successorOffsets[block], successorOffsets[block + 1])));
+			if(getNbHandlers(block) > 0)
+				sb.append(" catch ").append(Arrays.toString(Arrays.copyOfRange(handlers, handlerOffsets[block], handlerOffsets[block + 1])));
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * A growable list of ints.
+	 */
+	private static class IntList {
+		int[] values = new int[16];
+		int size;
+		
+		void add(int value) {
+			if(size == values.length)
+				values = Arrays.copyOf(values, size * 2);
+			values[size++] = value;
+		}
+		
+		int get(int i) {
+			return values[i];
+		}
+		
+		int[] toArray() {
+			return Arrays.copyOf(values, size);
+		}
+	}
+}
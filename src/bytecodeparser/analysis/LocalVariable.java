@@ -29,6 +29,7 @@ import javassist.CtBehavior;
 import javassist.Modifier;
 import javassist.NotFoundException;
 import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.Descriptor;
 import javassist.bytecode.LocalVariableAttribute;
 import bytecodeparser.utils.Utils;
 
@@ -61,22 +62,37 @@ public class LocalVariable {
 	 */
 	public final boolean isParameter;
 	
+	private final int slot;
+	private int startPc;
+	private int length;
+	
 	/**
 	 * Gives the range the local variable is valid within.
 	 */
 	public int[] getValidityRange() {
-		int[] result = new int[2];
-		LocalVariableAttribute localVariableAttribute = Utils.getLocalVariableAttribute(behavior);
-		result[0] = localVariableAttribute.startPc(index);
-		result[1] = result[0] + localVariableAttribute.codeLength(index);
-		return result;
+		return new int[] { startPc, startPc + length };
+	}
+	
+	/**
+	 * @return the index in the bytecode where the validity range of this variable starts.
+	 */
+	public int getStart() {
+		return startPc;
 	}
+	
+	/**
+	 * @return the index in the bytecode where the validity range of this variable ends.
+	 */
+	public int getEnd() {
+		return startPc + length;
+	}
+	
 	/**
 	 * The slot the local variable is put into.
 	 * @return
 	 */
 	public int getSlot() {
-		return Utils.getLocalVariableAttribute(behavior).index(index);
+		return slot;
 	}
 	
 	public LocalVariable(int index, String name, LocalVariableType type,  boolean isParameter, CtBehavior behavior) {
@@ -85,10 +101,39 @@ public class LocalVariable {
 		this.type = type;
 		this.behavior = behavior;
 		this.isParameter = isParameter;
+		LocalVariableAttribute localVariableAttribute = Utils.getLocalVariableAttribute(behavior);
+		this.slot = localVariableAttribute.index(index);
+		this.startPc = localVariableAttribute.startPc(index);
+		this.length = localVariableAttribute.codeLength(index);
+	}
+	
+	/**
+	 * Updates the validity range of this variable after a gap has been inserted in the bytecode, the same way javassist
+	 * updates the LocalVariableTable attribute for a non-exclusive insertion.
+	 * @param where the index where the gap has been inserted.
+	 * @param gap the length of the gap.
+	 */
+	public void shift(int where, int gap) {
+		shift(where, gap, false);
 	}
+	
+	/**
+	 * Updates the validity range of this variable after a gap has been inserted in the bytecode, the same way javassist
+	 * updates the LocalVariableTable attribute.
+	 * @param where the index where the gap has been inserted.
+	 * @param gap the length of the gap.
+	 * @param exclusive true if the gap has been inserted exclusively: a range starting or ending at where then excludes it.
+	 */
+	public void shift(int where, int gap, boolean exclusive) {
+		if(startPc > where || (exclusive && startPc == where && startPc != 0))
+			startPc += gap;
+		else if(startPc + length > where || (exclusive && startPc + length == where))
+			length += gap;
+	}
+	
 	@Override
 	public String toString() {
-		return name + " (" + type.typeName + ") " + "[" + index + " -> " + getSlot() + "] between [" + getValidityRange()[0] + "," + getValidityRange()[1] + "]";
+		return name + " (" + type.typeName + ") " + "[" + index + " -> " + slot + "] between [" + startPc + "," + getEnd() + "]";
 	}
 	
 	/**
@@ -98,7 +143,7 @@ public class LocalVariable {
 	 * @throws NotFoundException
 	 */
 	public static Map<Integer, LocalVariable> findVariables(CtBehavior behavior) throws NotFoundException {
-		int nbParameters = behavior.getParameterTypes().length;
+		int nbParameters = Descriptor.numOfParameters(behavior.getMethodInfo().getDescriptor());
 		boolean isStatic = Modifier.isStatic(behavior.getModifiers());
 		Map<Integer, LocalVariable> variables = new HashMap<Integer, LocalVariable>();
 		CodeAttribute codeAttribute = behavior.getMethodInfo().getCodeAttribute();
@@ -117,6 +162,7 @@ public class LocalVariable {
 	
 	/**
 	 * Get the local variable in the given slot at the given index in the given map of local variables.
+	 * This method scans all the variables; Context.getLocalVariableIndex() gives the same results in logarithmic time.
 	 * @param slot
 	 * @param index
 	 * @param variables
@@ -126,13 +172,12 @@ public class LocalVariable {
 		TreeMap<Integer, LocalVariable> variablesByDistance = new TreeMap<Integer, LocalVariable>();
 		for(LocalVariable lv : variables.values()) {
 			if(lv.getSlot() == slot) {
-				int[] validityRange = lv.getValidityRange();
-				if(validityRange[1] >= index) {
-					if(validityRange[0] <= index) {
+				if(lv.getEnd() >= index) {
+					if(lv.getStart() <= index) {
 						LOGGER.debug("getLocalVariable in slot " + slot + " at index " + index + ": found " + lv);
 						return lv;
 					} else
-						variablesByDistance.put(validityRange[0] - index, lv);
+						variablesByDistance.put(lv.getStart() - index, lv);
 				}
 			}
 		}
@@ -0,0 +1,133 @@
+/*
+ *  Copyright (C) 2011 Stephane Godbillon
+ *  
+ *  This file is part of BytecodeParser. See the README file in the root
+ *  directory of this project.
+ *
+ *  BytecodeParser is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+
+ *  BytecodeParser is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with BytecodeParser.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bytecodeparser.analysis;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+
+/**
+ * An index of the local variables of a behavior, for fast lookups by slot and bytecode index.
+ * 
+ * The validity ranges of the variables are grouped by slot and sorted by start, in primitive arrays.
+ * A lookup is a binary search in the ranges of the slot, and does not allocate anything.
+ * It gives the same results as LocalVariable.getLocalVariable(int, int, Map).
+ * 
+ * @author Stephane Godbillon
+ *
+ */
+public class LocalVariableIndex {
+	/**
+	 * The entries of the slot s are between slotOffsets[s] and slotOffsets[s + 1].
+	 */
+	private final int[] slotOffsets;
+	private final int[] starts;
+	private final int[] ends;
+	/**
+	 * The greatest end of the entries of the same slot, up to each entry.
+	 */
+	private final int[] maxEnds;
+	private final LocalVariable[] variables;
+	
+	/**
+	 * Builds the index of the given variables.
+	 * @param localVariables the local variables, as given by LocalVariable.findVariables().
+	 */
+	public LocalVariableIndex(Map<Integer, LocalVariable> localVariables) {
+		int size = localVariables.size();
+		final int[] slots = new int[size];
+		final int[] starts = new int[size];
+		int[] ends = new int[size];
+		LocalVariable[] variables = new LocalVariable[size];
+		Integer[] order = new Integer[size];
+		int maxSlot = -1;
+		int i = 0;
+		for(LocalVariable variable : localVariables.values()) {
+			slots[i] = variable.getSlot();
+			starts[i] = variable.getStart();
+			ends[i] = variable.getEnd();
+			variables[i] = variable;
+			order[i] = i;
+			maxSlot = Math.max(maxSlot, slots[i]);
+			i++;
+		}
+		final LocalVariable[] unsorted = variables;
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				if(slots[o1] != slots[o2])
+					return slots[o1] < slots[o2] ? -1 : 1;
+				if(starts[o1] != starts[o2])
+					return starts[o1] < starts[o2] ? -1 : 1;
+				return unsorted[o1].index < unsorted[o2].index ? -1 : unsorted[o1].index == unsorted[o2].index ? 0 : 1;
+			}
+		});
+		this.slotOffsets = new int[maxSlot + 2];
+		this.starts = new int[size];
+		this.ends = new int[size];
+		this.maxEnds = new int[size];
+		this.variables = new LocalVariable[size];
+		for(i = 0; i < size; i++) {
+			int j = order[i];
+			this.starts[i] = starts[j];
+			this.ends[i] = ends[j];
+			this.variables[i] = variables[j];
+			this.maxEnds[i] = i > 0 && slots[order[i - 1]] == slots[j] ? Math.max(maxEnds[i - 1], ends[j]) : ends[j];
+			slotOffsets[slots[j] + 1]++;
+		}
+		for(int s = 0; s <= maxSlot; s++)
+			slotOffsets[s + 1] += slotOffsets[s];
+	}
+	
+	/**
+	 * Gets the local variable in the given slot at the given index.
+	 * If no variable of this slot is valid at this index, the variable of this slot whose validity range starts the soonest after it is returned.
+	 * @param slot
+	 * @param index
+	 * @return the local variable, or null if there is none.
+	 */
+	public LocalVariable get(int slot, int index) {
+		if(slot < 0 || slot + 1 >= slotOffsets.length)
+			return null;
+		int from = slotOffsets[slot], to = slotOffsets[slot + 1];
+		// first entry starting after index
+		int low = from, high = to;
+		while(low < high) {
+			int middle = (low + high) >>> 1;
+			if(starts[middle] <= index)
+				low = middle + 1;
+			else high = middle;
+		}
+		// among the entries starting before index and valid at index, the one of the lowest index in the LocalVariableTable
+		LocalVariable result = null;
+		for(int i = low - 1; i >= from && maxEnds[i] >= index; i--)
+			if(ends[i] >= index && (result == null || variables[i].index < result.index))
+				result = variables[i];
+		if(result != null)
+			return result;
+		if(low == to)
+			return null;
+		// the closest next one; among the ones starting at the same index, the one of the highest index in the LocalVariableTable
+		int next = low;
+		while(next + 1 < to && starts[next + 1] == starts[low])
+			next++;
+		return variables[next];
+	}
+}
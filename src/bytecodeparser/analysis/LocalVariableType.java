@@ -19,14 +19,11 @@
  */
 package bytecodeparser.analysis;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javassist.CtClass;
 import javassist.bytecode.Descriptor;
-import javassist.bytecode.SignatureAttribute;
-import javassist.bytecode.SignatureAttribute.ArrayType;
-import javassist.bytecode.SignatureAttribute.ClassType;
 
 /**
  * Information about a localVariable type.
@@ -75,31 +72,59 @@ public class LocalVariableType {
 	
 	/**
 	 * Makes a localVariableType from a given signature.
+	 * The instances are interned: parsing the same signature twice returns the same instance.
 	 * @return LocalVariableType
 	 * @throws RuntimeException if the signature could not be parsed.
 	 */
 	public static LocalVariableType parse(String signature) {
+		LocalVariableType type = cache.get(signature);
+		if(type == null) {
+			type = scan(signature);
+			if(cache.size() < MAX_CACHE_SIZE) {
+				LocalVariableType previous = cache.putIfAbsent(signature, type);
+				if(previous != null)
+					type = previous;
+			}
+		}
+		return type;
+	}
+	
+	private static LocalVariableType scan(String signature) {
 		int dimensions = 0;
-		for(int i = 0; i < signature.length(); i++) {
-			if(signature.charAt(i) == '[')
-				dimensions++;
-			else break;
+		while(dimensions < signature.length() && signature.charAt(dimensions) == '[')
+			dimensions++;
+		if(dimensions == signature.length())
+			throw new RuntimeException("unknown signature: " + signature);
+		char c = signature.charAt(dimensions);
+		if(c == 'L') {
+			int end = signature.indexOf(';', dimensions);
+			if(end != signature.length() - 1)
+				throw new RuntimeException("unknown signature: " + signature);
+			// like javassist's SignatureAttribute, only the innermost name of a nested class is kept
+			int start = signature.lastIndexOf('$', end) + 1;
+			if(start <= dimensions)
+				start = dimensions + 1;
+			String typeName = signature.substring(start, end).replace('/', '.');
+			return new LocalVariableType(signature, addArrayTypeInfo(typeName, dimensions), typeName, false, dimensions);
 		}
-		try {
-			javassist.bytecode.SignatureAttribute.Type objectType = SignatureAttribute.toFieldSignature(signature);
-			if(objectType instanceof ArrayType)
-				objectType = ((ArrayType) objectType).getComponentType();
-			if(objectType instanceof ClassType) {
-				String typeName = ((ClassType) objectType).getName();
-				return new LocalVariableType(signature, addArrayTypeInfo(typeName, dimensions), typeName, false, dimensions);
-			}
-			throw new RuntimeException("not a class ?");
-		} catch(Exception e) {
-			// not a class
-			String typeName = primitiveSymbols.get("" + signature.charAt(dimensions));
-			if(typeName == null)
-				throw new RuntimeException("unknown signature: " + signature, e);
-			return new LocalVariableType(signature, addArrayTypeInfo(typeName, dimensions), typeName, true, dimensions);
+		String typeName = primitiveName(c);
+		if(typeName == null || dimensions + 1 != signature.length())
+			throw new RuntimeException("unknown signature: " + signature);
+		return new LocalVariableType(signature, addArrayTypeInfo(typeName, dimensions), typeName, true, dimensions);
+	}
+	
+	private static String primitiveName(char symbol) {
+		switch(symbol) {
+			case 'V': return "void";
+			case 'Z': return "boolean";
+			case 'B': return "byte";
+			case 'C': return "char";
+			case 'S': return "short";
+			case 'I': return "int";
+			case 'J': return "long";
+			case 'F': return "float";
+			case 'D': return "double";
+			default: return null;
 		}
 	}
 	
@@ -118,16 +143,6 @@ public class LocalVariableType {
 		return result;
 	}
 	
-	private static Map<String, String> primitiveSymbols = new HashMap<String, String>();
-	static {
-		primitiveSymbols.put("V", "void");
-		primitiveSymbols.put("Z", "boolean");
-		primitiveSymbols.put("B", "byte");
-		primitiveSymbols.put("C", "char");
-		primitiveSymbols.put("S", "short");
-		primitiveSymbols.put("I", "int");
-		primitiveSymbols.put("J", "long");
-		primitiveSymbols.put("F", "float");
-		primitiveSymbols.put("D", "double");
-	}
+	private static final int MAX_CACHE_SIZE = 10000;
+	private static final ConcurrentMap<String, LocalVariableType> cache = new ConcurrentHashMap<String, LocalVariableType>();
 }
\ No newline at end of file
@@ -31,6 +31,7 @@ import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
 
 import javassist.bytecode.Opcode;
@@ -99,31 +100,75 @@ public class Opcodes {
 	}
 	
 	/**
-	 * Gets the name of the given opcode.
-	 * @param op
-	 * @return the name of the given opcode, or UNKNOWN_OP if unknown.
+	 * The names of the opcodes, indexed by the unsigned value of the opcode.
 	 */
-	public static String findOpName(int op) {
+	private static final String[] NAMES = new String[256];
+	/**
+	 * The opcodes, indexed by their names.
+	 */
+	private static final Map<String, Integer> CODES = new HashMap<String, Integer>();
+	static {
 		for(Field field : javassist.bytecode.Opcode.class.getFields()) {
-			if(Modifier.isStatic(field.getModifiers())) {
+			if(Modifier.isStatic(field.getModifiers()) && field.getType() == int.class) {
 				try {
-					int foundOp = field.getInt(null);
-					if(foundOp == op) {
-						return field.getName();
+					int code = field.getInt(null);
+					if(code >= 0 && code < NAMES.length && NAMES[code] == null) {
+						NAMES[code] = field.getName();
+						CODES.put(field.getName(), code);
 					}
 				} catch (Exception e) {
 					// nothing
 				}
 			}
 		}
+	}
+	
+	/**
+	 * Gets the name of the given opcode.
+	 * @param op
+	 * @return the name of the given opcode, or UNKNOWN_OP if unknown.
+	 */
+	public static String findOpName(int op) {
+		if(op >= 0 && op < NAMES.length && NAMES[op] != null)
+			return NAMES[op];
 		return "UNKNOWN_OP";
 	}
 	
+	/**
+	 * Gets the opcode of the given name. The name is case-insensitive, so both the javassist names (ALOAD) and
+	 * the mnemonics of the JVM specification (aload) are found.
+	 * @param name
+	 * @return the opcode, or -1 if unknown.
+	 */
+	public static int findOpCode(String name) {
+		Integer code = CODES.get(name);
+		if(code == null)
+			code = CODES.get(name.toUpperCase(Locale.ENGLISH));
+		return code != null ? code : -1;
+	}
+	
 	/**
 	 * Mapping between the opcode and its matching Op.
+	 * This is a read-only view of the dispatch table, prefer {@link #get(int)} when decoding bytecode.
 	 */
 	public static final Map<Integer, Op> OPCODES;
 	
+	/**
+	 * Dispatch table, indexed by the unsigned value of the opcode.
+	 */
+	private static final Op[] TABLE = new Op[256];
+	
+	/**
+	 * Gets the Op matching the given opcode.
+	 * @param code the unsigned opcode, as returned by CodeIterator.byteAt().
+	 * @return the matching Op, or null if this opcode is not handled.
+	 */
+	public static Op get(int code) {
+		if(code < 0 || code >= TABLE.length)
+			return null;
+		return TABLE[code];
+	}
+	
 	static {
 		Map<Integer, Op> opcodes = new HashMap<Integer, Op>();
 		
@@ -221,8 +266,7 @@ public class Opcodes {
 				return new DecodedOp(this, context, index) {
 					@Override
 					public void simulate(Stack stack) {
-						stack.stack.pop();
-						stack.stack.pop();
+						stack.discard(2);
 					}
 				};
 			}
@@ -245,7 +289,7 @@ public class Opcodes {
 					@Override
 					public void simulate(Stack stack) {
 						StackElement se = stack.peek().copy();
-						stack.stack.add(2, se);
+						stack.insertFromTop(2, se);
 					}
 				};
 			};
@@ -257,7 +301,7 @@ public class Opcodes {
 					@Override
 					public void simulate(Stack stack) {
 						StackElement se = stack.peek().copy();
-						stack.stack.add(3, se);
+						stack.insertFromTop(3, se);
 					}
 				};
 			}
@@ -269,10 +313,10 @@ public class Opcodes {
 					@Override
 					public void simulate(Stack stack) {
 						StackElement[] elements = new StackElement[2];
-						elements[0] = stack.stack.get(0).copy();
-						elements[1] = stack.stack.get(1).copy();
-						stack.stack.push(elements[1]);
-						stack.stack.push(elements[0]);
+						elements[0] = stack.getFromTop(0).copy();
+						elements[1] = stack.getFromTop(1).copy();
+						stack.push(elements[1]);
+						stack.push(elements[0]);
 					}
 				};
 			}
@@ -284,10 +328,10 @@ public class Opcodes {
 					@Override
 					public void simulate(Stack stack) {
 						StackElement[] elements = new StackElement[2];
-						elements[0] = stack.stack.get(0).copy();
-						elements[1] = stack.stack.get(1).copy();
-						stack.stack.add(3, elements[0]);
-						stack.stack.add(3, elements[1]);
+						elements[0] = stack.getFromTop(0).copy();
+						elements[1] = stack.getFromTop(1).copy();
+						stack.insertFromTop(3, elements[0]);
+						stack.insertFromTop(3, elements[1]);
 					}
 				};
 			}
@@ -298,10 +342,10 @@ public class Opcodes {
 					@Override
 					public void simulate(Stack stack) {
 						StackElement[] elements = new StackElement[2];
-						elements[0] = stack.stack.get(0).copy();
-						elements[1] = stack.stack.get(1).copy();
-						stack.stack.add(4, elements[0]);
-						stack.stack.add(4, elements[1]);
+						elements[0] = stack.getFromTop(0).copy();
+						elements[1] = stack.getFromTop(1).copy();
+						stack.insertFromTop(4, elements[0]);
+						stack.insertFromTop(4, elements[1]);
 					}
 				};
 			}
@@ -315,7 +359,7 @@ public class Opcodes {
 						StackElement se = stack.pop();
 						//Previously stack.stack.size() was putting the element at the BOTTOM of the stack
 						//fix this to put it at the second position in the stack from the top.
-						stack.stack.add(1, se);
+						stack.insertFromTop(1, se);
 					}
 				};
 			}
@@ -427,6 +471,8 @@ public class Opcodes {
 		opcodes.put(Opcode.GOTO_W, new BranchOpCode(Opcode.GOTO_W, S4));
 		opcodes.put(Opcode.JSR_W, new BranchOpCode(Opcode.JSR_W, S4).setPushes(ONE));
 		
+		for(Map.Entry<Integer, Op> entry : opcodes.entrySet())
+			TABLE[entry.getKey()] = entry.getValue();
 		OPCODES = Collections.unmodifiableMap(opcodes);
 	}
 }
@@ -0,0 +1,355 @@
+/*
+ *  Copyright (C) 2011 Stephane Godbillon
+ *  
+ *  This file is part of BytecodeParser. See the README file in the root
+ *  directory of this project.
+ *
+ *  BytecodeParser is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+
+ *  BytecodeParser is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with BytecodeParser.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bytecodeparser.analysis.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.apache.log4j.Logger;
+
+import javassist.CtBehavior;
+import javassist.bytecode.AttributeInfo;
+import javassist.bytecode.BadBytecode;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.CodeIterator;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.ExceptionTable;
+import javassist.bytecode.LocalVariableAttribute;
+import javassist.bytecode.Opcode;
+import bytecodeparser.analysis.stack.StackAnalyzer;
+
+/**
+ * A persistent cache of analysis results.
+ * 
+ * The summary of the analysis of each behavior is stored in its own file, named after a SHA-1 hash of everything the analysis depends on:
+ * the bytecode, the constant pool entries it references, the exception table and the local variable table. An unchanged behavior is then
+ * never analyzed twice, even across runs and when the constant pool of its class has been reordered.
+ * The least recently used files are evicted when the total size of the cache goes over its maximum size.
+ * 
+ * @author Stephane Godbillon
+ *
+ */
+public class AnalysisCache {
+	private static final Logger LOGGER = Logger.getLogger(AnalysisCache.class);
+	private static final int MAGIC = 0xBCCA0001;
+	private static final String SUFFIX = ".summary";
+	
+	/**
+	 * The directory of the cache files.
+	 */
+	public final File directory;
+	/**
+	 * The maximum size of the cache, in bytes.
+	 */
+	public final long maxSize;
+	private long size;
+	private int hits, misses;
+	
+	/**
+	 * Opens a cache in the given directory, creating it if needed.
+	 * @param directory
+	 * @param maxSize the maximum size of the cache files, in bytes.
+	 * @throws IOException if the directory cannot be created.
+	 */
+	public AnalysisCache(File directory, long maxSize) throws IOException {
+		this.directory = directory;
+		this.maxSize = maxSize;
+		if(!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("cannot create the cache directory " + directory);
+		for(File file : listCacheFiles())
+			size += file.length();
+	}
+	
+	/**
+	 * Gets the summary of the analysis of the given behavior, analyzing it only if it is not in the cache.
+	 * @param behavior
+	 * @return the summary.
+	 * @throws BadBytecode if the bytecode of the behavior is wrong.
+	 */
+	public MethodSummary analyze(CtBehavior behavior) throws BadBytecode {
+		String key = key(behavior);
+		MethodSummary summary = get(key);
+		if(summary == null) {
+			summary = MethodSummary.of(new StackAnalyzer(behavior).analyze());
+			put(key, summary);
+		}
+		return summary;
+	}
+	
+	/**
+	 * Gets the summary stored with the given key.
+	 * @param key
+	 * @return the summary, or null if it is not in the cache.
+	 */
+	public MethodSummary get(String key) {
+		File file = new File(directory, key + SUFFIX);
+		if(!file.isFile()) {
+			countMiss();
+			return null;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if(in.readInt() != MAGIC)
+					throw new IOException("bad cache file " + file);
+				MethodSummary summary = MethodSummary.read(in);
+				file.setLastModified(System.currentTimeMillis());
+				countHit();
+				return summary;
+			} finally {
+				in.close();
+			}
+		} catch (Exception e) {
+			LOGGER.warn("cannot read cache file " + file + ", ignoring it", e);
+			remove(file);
+			countMiss();
+			return null;
+		}
+	}
+	
+	/**
+	 * Stores the given summary with the given key, evicting the least recently used summaries if the cache is full.
+	 * @param key
+	 * @param summary
+	 */
+	public void put(String key, MethodSummary summary) {
+		File file = new File(directory, key + SUFFIX);
+		File tmp = new File(directory, key + "." + Thread.currentThread().getId() + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			try {
+				out.writeInt(MAGIC);
+				summary.write(out);
+			} finally {
+				out.close();
+			}
+			long length = tmp.length();
+			synchronized (this) {
+				long previous = file.length();
+				if(!tmp.renameTo(file)) {
+					file.delete();
+					if(!tmp.renameTo(file))
+						throw new IOException("cannot rename " + tmp + " to " + file);
+				}
+				size += length - previous;
+				if(size > maxSize)
+					evict();
+			}
+		} catch (IOException e) {
+			LOGGER.warn("cannot write cache file " + file, e);
+			tmp.delete();
+		}
+	}
+	
+	/**
+	 * @return the number of summaries found in the cache.
+	 */
+	public synchronized int getHits() {
+		return hits;
+	}
+	
+	/**
+	 * @return the number of summaries not found in the cache.
+	 */
+	public synchronized int getMisses() {
+		return misses;
+	}
+	
+	/**
+	 * @return the total size of the cache files, in bytes.
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+	
+	private synchronized void countHit() {
+		hits++;
+	}
+	
+	private synchronized void countMiss() {
+		misses++;
+	}
+	
+	private synchronized void remove(File file) {
+		long length = file.length();
+		if(file.delete())
+			size -= length;
+	}
+	
+	/**
+	 * Deletes the least recently used files until the cache is at most 3/4 full, so that eviction does not happen on every write.
+	 */
+	private void evict() {
+		File[] files = listCacheFiles();
+		final long[] lastModified = new long[files.length];
+		Integer[] order = new Integer[files.length];
+		for(int i = 0; i < files.length; i++) {
+			lastModified[i] = files[i].lastModified();
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				return lastModified[o1] < lastModified[o2] ? -1 : lastModified[o1] == lastModified[o2] ? 0 : 1;
+			}
+		});
+		long target = maxSize / 4 * 3;
+		for(int i = 0; i < order.length && size > target; i++)
+			remove(files[order[i]]);
+		if(LOGGER.isDebugEnabled())
+			LOGGER.debug("cache evicted down to " + size + " bytes");
+	}
+	
+	private File[] listCacheFiles() {
+		File[] files = directory.listFiles();
+		if(files == null)
+			return new File[0];
+		int n = 0;
+		for(File file : files)
+			if(file.getName().endsWith(SUFFIX))
+				files[n++] = file;
+		return Arrays.copyOf(files, n);
+	}
+	
+	/**
+	 * Computes the cache key of the given behavior.
+	 * The constant pool indexes found in the bytecode, the exception table and the local variable table are replaced
+	 * by the content of the entries they reference, so the key only depends on what the analysis depends on.
+	 * @param behavior
+	 * @return the hexadecimal SHA-1 hash of the behavior.
+	 * @throws BadBytecode if the bytecode of the behavior is wrong.
+	 */
+	public static String key(CtBehavior behavior) throws BadBytecode {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		CodeAttribute codeAttribute = behavior.getMethodInfo().getCodeAttribute();
+		ConstPool constPool = codeAttribute.getConstPool();
+		update(digest, behavior.getMethodInfo().getDescriptor());
+		update(digest, Integer.toString(behavior.getModifiers()));
+		CodeIterator iterator = codeAttribute.iterator();
+		byte[] code = codeAttribute.getCode();
+		while(iterator.hasNext()) {
+			int index = iterator.next();
+			int end = iterator.hasNext() ? iterator.lookAhead() : code.length;
+			int opcode = iterator.byteAt(index);
+			int constant = getConstantIndex(iterator, opcode, index);
+			if(constant > 0) {
+				// the opcode and its operands other than the constant index
+				digest.update((byte) opcode);
+				if(opcode == Opcode.INVOKEINTERFACE || opcode == Opcode.MULTIANEWARRAY)
+					digest.update(code, index + 3, end - index - 3);
+				update(digest, constantToString(constPool, constant));
+			} else {
+				digest.update(code, index, end - index);
+			}
+		}
+		ExceptionTable exceptionTable = codeAttribute.getExceptionTable();
+		for(int i = 0; i < exceptionTable.size(); i++) {
+			int catchType = exceptionTable.catchType(i);
+			update(digest, exceptionTable.startPc(i) + "," + exceptionTable.endPc(i) + "," + exceptionTable.handlerPc(i) + "," + (catchType == 0 ? "" : constPool.getClassInfo(catchType)));
+		}
+		for(Object attribute : codeAttribute.getAttributes()) {
+			if(attribute instanceof LocalVariableAttribute) {
+				LocalVariableAttribute lva = (LocalVariableAttribute) attribute;
+				update(digest, ((AttributeInfo) attribute).getName());
+				for(int i = 0; i < lva.tableLength(); i++)
+					update(digest, lva.startPc(i) + "," + lva.codeLength(i) + "," + lva.index(i) + "," + lva.variableName(i) + "," + lva.descriptor(i));
+			}
+		}
+		byte[] hash = digest.digest();
+		StringBuffer sb = new StringBuffer(hash.length * 2);
+		for(byte b : hash)
+			sb.append(Character.forDigit(b >> 4 & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		return sb.toString();
+	}
+	
+	private static int getConstantIndex(CodeIterator iterator, int opcode, int index) {
+		switch(opcode) {
+			case Opcode.LDC:
+				return iterator.byteAt(index + 1);
+			case Opcode.LDC_W:
+			case Opcode.LDC2_W:
+			case Opcode.GETSTATIC:
+			case Opcode.PUTSTATIC:
+			case Opcode.GETFIELD:
+			case Opcode.PUTFIELD:
+			case Opcode.INVOKEVIRTUAL:
+			case Opcode.INVOKESPECIAL:
+			case Opcode.INVOKESTATIC:
+			case Opcode.INVOKEINTERFACE:
+			case Opcode.NEW:
+			case Opcode.ANEWARRAY:
+			case Opcode.CHECKCAST:
+			case Opcode.INSTANCEOF:
+			case Opcode.MULTIANEWARRAY:
+				return iterator.u16bitAt(index + 1);
+			default:
+				return 0;
+		}
+	}
+	
+	private static String constantToString(ConstPool constPool, int index) {
+		int tag = constPool.getTag(index);
+		switch(tag) {
+			case ConstPool.CONST_Class:
+				return tag + ":" + constPool.getClassInfo(index);
+			case ConstPool.CONST_Fieldref:
+				return tag + ":" + constPool.getFieldrefClassName(index) + "." + constPool.getFieldrefName(index) + ":" + constPool.getFieldrefType(index);
+			case ConstPool.CONST_Methodref:
+				return tag + ":" + constPool.getMethodrefClassName(index) + "." + constPool.getMethodrefName(index) + constPool.getMethodrefType(index);
+			case ConstPool.CONST_InterfaceMethodref:
+				return tag + ":" + constPool.getInterfaceMethodrefClassName(index) + "." + constPool.getInterfaceMethodrefName(index) + constPool.getInterfaceMethodrefType(index);
+			case ConstPool.CONST_String:
+			case ConstPool.CONST_Integer:
+			case ConstPool.CONST_Float:
+			case ConstPool.CONST_Long:
+			case ConstPool.CONST_Double:
+				return tag + ":" + constPool.getLdcValue(index);
+			default:
+				return tag + "#" + index;
+		}
+	}
+	
+	private static void update(MessageDigest digest, String value) {
+		try {
+			byte[] bytes = value.getBytes("UTF-8");
+			for(int shift = 24; shift >= 0; shift -= 8)
+				digest.update((byte) (bytes.length >> shift));
+			digest.update(bytes);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,263 @@
+/*
+ *  Copyright (C) 2011 Stephane Godbillon
+ *  
+ *  This file is part of BytecodeParser. See the README file in the root
+ *  directory of this project.
+ *
+ *  BytecodeParser is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+
+ *  BytecodeParser is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with BytecodeParser.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bytecodeparser.analysis.cache;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javassist.bytecode.CodeIterator;
+
+import bytecodeparser.analysis.LocalVariableType;
+import bytecodeparser.analysis.decoders.DecodedMethodInvocationOp;
+import bytecodeparser.analysis.decoders.DecodedMethodInvocationOp.MethodParam;
+import bytecodeparser.analysis.decoders.DecodedMethodInvocationOp.MethodParams;
+import bytecodeparser.analysis.stack.StackAnalyzer.Frame;
+import bytecodeparser.analysis.stack.StackAnalyzer.Frames;
+
+/**
+ * A compact summary of the analysis of a behavior: its instructions, their reachability, and the resolved parameters
+ * of its method invocations. Unlike Frames, a summary can be stored and read back without analyzing the behavior again.
+ * @author Stephane Godbillon
+ *
+ */
+public class MethodSummary {
+	/**
+	 * The length of the code of the behavior.
+	 */
+	public final int codeLength;
+	/**
+	 * The indexes of the instructions.
+	 */
+	public final int[] indexes;
+	/**
+	 * The opcode of each instruction.
+	 */
+	public final int[] opcodes;
+	/**
+	 * States if each instruction is reachable.
+	 */
+	public final boolean[] accessible;
+	/**
+	 * The reachable method invocations, in bytecode order.
+	 */
+	public final Invocation[] invocations;
+	
+	public MethodSummary(int codeLength, int[] indexes, int[] opcodes, boolean[] accessible, Invocation[] invocations) {
+		this.codeLength = codeLength;
+		this.indexes = indexes;
+		this.opcodes = opcodes;
+		this.accessible = accessible;
+		this.invocations = invocations;
+	}
+	
+	/**
+	 * Summarizes the given frames.
+	 * @param frames
+	 */
+	public static MethodSummary of(Frames frames) {
+		int nbInstructions = 0;
+		for(Frame frame : frames.frames)
+			if(frame != null)
+				nbInstructions++;
+		int[] indexes = new int[nbInstructions];
+		int[] opcodes = new int[nbInstructions];
+		boolean[] accessible = new boolean[nbInstructions];
+		List<Invocation> invocations = new ArrayList<Invocation>();
+		CodeIterator iterator = frames.behavior.getMethodInfo().getCodeAttribute().iterator();
+		int i = 0;
+		for(Frame frame : frames.frames) {
+			if(frame == null)
+				continue;
+			indexes[i] = frame.index;
+			accessible[i] = frame.isAccessible;
+			if(frame.isAccessible) {
+				opcodes[i] = frame.decodedOp.op.code;
+				if(frame.decodedOp instanceof DecodedMethodInvocationOp) {
+					DecodedMethodInvocationOp decoded = (DecodedMethodInvocationOp) frame.decodedOp;
+					invocations.add(new Invocation(frame.index, decoded.getDeclaringClassName(), decoded.getName(), decoded.getDescriptor(), DecodedMethodInvocationOp.resolveParameters(frame)));
+				}
+			} else {
+				opcodes[i] = iterator.byteAt(frame.index);
+			}
+			i++;
+		}
+		return new MethodSummary(frames.frames.length, indexes, opcodes, accessible, invocations.toArray(new Invocation[invocations.size()]));
+	}
+	
+	/**
+	 * Writes this summary.
+	 * @param out
+	 * @throws IOException
+	 */
+	public void write(DataOutputStream out) throws IOException {
+		out.writeInt(codeLength);
+		out.writeInt(indexes.length);
+		for(int i = 0; i < indexes.length; i++) {
+			out.writeShort(indexes[i]);
+			out.writeByte(opcodes[i]);
+			out.writeBoolean(accessible[i]);
+		}
+		out.writeInt(invocations.length);
+		for(Invocation invocation : invocations) {
+			out.writeShort(invocation.index);
+			out.writeUTF(invocation.declaringClassName);
+			out.writeUTF(invocation.name);
+			out.writeUTF(invocation.descriptor);
+			writeParam(out, invocation.params.subject);
+			writeParams(out, invocation.params.params);
+			writeParams(out, invocation.params.varargs);
+		}
+	}
+	
+	/**
+	 * Reads a summary written by write(DataOutputStream).
+	 * @param in
+	 * @throws IOException
+	 */
+	public static MethodSummary read(DataInputStream in) throws IOException {
+		int codeLength = in.readInt();
+		int nbInstructions = in.readInt();
+		int[] indexes = new int[nbInstructions];
+		int[] opcodes = new int[nbInstructions];
+		boolean[] accessible = new boolean[nbInstructions];
+		for(int i = 0; i < nbInstructions; i++) {
+			indexes[i] = in.readUnsignedShort();
+			opcodes[i] = in.readUnsignedByte();
+			accessible[i] = in.readBoolean();
+		}
+		Invocation[] invocations = new Invocation[in.readInt()];
+		for(int i = 0; i < invocations.length; i++) {
+			int index = in.readUnsignedShort();
+			String declaringClassName = in.readUTF();
+			String name = in.readUTF();
+			String descriptor = in.readUTF();
+			MethodParam subject = readParam(in);
+			MethodParam[] params = readParams(in);
+			MethodParam[] varargs = readParams(in);
+			invocations[i] = new Invocation(index, declaringClassName, name, descriptor, new MethodParams(subject, params, varargs));
+		}
+		return new MethodSummary(codeLength, indexes, opcodes, accessible, invocations);
+	}
+	
+	private static void writeParams(DataOutputStream out, MethodParam[] params) throws IOException {
+		if(params == null) {
+			out.writeShort(-1);
+			return;
+		}
+		out.writeShort(params.length);
+		for(MethodParam param : params)
+			writeParam(out, param);
+	}
+	
+	private static MethodParam[] readParams(DataInputStream in) throws IOException {
+		int length = in.readShort();
+		if(length == -1)
+			return null;
+		MethodParam[] params = new MethodParam[length];
+		for(int i = 0; i < length; i++)
+			params[i] = readParam(in);
+		return params;
+	}
+	
+	private static void writeParam(DataOutputStream out, MethodParam param) throws IOException {
+		int flags = (param == null ? 0 : 1) | (param != null && param.name != null ? 2 : 0) | (param != null && param.type != null ? 4 : 0);
+		out.writeByte(flags);
+		if(param != null && param.name != null)
+			out.writeUTF(param.name);
+		if(param != null && param.type != null)
+			out.writeUTF(param.type.signature);
+	}
+	
+	private static MethodParam readParam(DataInputStream in) throws IOException {
+		int flags = in.readUnsignedByte();
+		if((flags & 1) == 0)
+			return null;
+		String name = (flags & 2) != 0 ? in.readUTF() : null;
+		LocalVariableType type = (flags & 4) != 0 ? LocalVariableType.parse(in.readUTF()) : null;
+		return new MethodParam(name, type);
+	}
+	
+	@Override
+	public String toString() {
+		StringBuffer sb = new StringBuffer("MethodSummary (").append(indexes.length).append(" instructions)");
+		for(Invocation invocation : invocations)
+			sb.append("\n").append(invocation);
+		return sb.toString();
+	}
+	
+	/**
+	 * A method invocation, with its resolved parameters.
+	 * @author Stephane Godbillon
+	 *
+	 */
+	public static class Invocation {
+		/**
+		 * The index of the invocation in the bytecode.
+		 */
+		public final int index;
+		/**
+		 * The name of the class declaring the invoked method.
+		 */
+		public final String declaringClassName;
+		/**
+		 * The name of the invoked method.
+		 */
+		public final String name;
+		/**
+		 * The descriptor of the invoked method.
+		 */
+		public final String descriptor;
+		/**
+		 * The resolved parameters.
+		 */
+		public final MethodParams params;
+		
+		public Invocation(int index, String declaringClassName, String name, String descriptor, MethodParams params) {
+			this.index = index;
+			this.declaringClassName = declaringClassName;
+			this.name = name;
+			this.descriptor = descriptor;
+			this.params = params;
+		}
+		
+		/**
+		 * @return the names of the parameters, with the varargs merged.
+		 */
+		public String[] getParameterNames() {
+			MethodParam[] merged = params.merge();
+			String[] result = new String[merged.length];
+			for(int i = 0; i < result.length; i++)
+				result[i] = merged[i].name;
+			return result;
+		}
+		
+		@Override
+		public String toString() {
+			StringBuffer sb = new StringBuffer().append(index).append(": ").append(declaringClassName).append(".").append(name).append("(");
+			String[] names = getParameterNames();
+			for(int i = 0; i < names.length; i++)
+				sb.append(i > 0 ? ", " : "").append(names[i]);
+			return sb.append(")").toString();
+		}
+	}
+}
@@ -27,7 +27,6 @@ import bytecodeparser.analysis.stack.Constant.IntegerConstant;
 import bytecodeparser.analysis.stack.Stack;
 import bytecodeparser.analysis.stack.StackElement;
 import bytecodeparser.analysis.stack.TrackableArray;
-import bytecodeparser.utils.Utils;
 
 /**
  * A decoded array creation op.
@@ -51,7 +50,7 @@ public class DecodedArrayCreationOp extends DecodedBasicOp {
 		else dimensions = 1;
 		if(op.getCode() == Opcode.NEWARRAY)
 			signature = getSignatureForSingleDimensionArrayOfPrimitive(parameterValues[0]);
-		else signature = Utils.getConstPool(context.behavior).getClassInfo(parameterValues[0]);
+		else signature = context.constPoolCache.getClassInfo(parameterValues[0]);
 	}
 	
 	@Override
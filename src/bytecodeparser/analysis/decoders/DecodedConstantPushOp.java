@@ -51,16 +51,16 @@ public class DecodedConstantPushOp extends DecodedBasicOp {
 		if(cpop.getParameterTypes().length == 0) {
 			switch(cpop.baseCode) {
 				case Opcode.ICONST_0:
-					stack.push(new IntegerConstant(cpop.getCode() - cpop.baseCode));
+					stack.push(IntegerConstant.valueOf(cpop.getCode() - cpop.baseCode));
 					break;
 				case Opcode.LCONST_0:
-					stack.push2(new LongConstant(new Long(new Integer(cpop.getCode() - cpop.baseCode))));
+					stack.push2(LongConstant.valueOf(cpop.getCode() - cpop.baseCode));
 					break;
 				case Opcode.FCONST_0:
-					stack.push(new FloatConstant(new Float(cpop.getCode() - cpop.baseCode)));
+					stack.push(FloatConstant.valueOf(cpop.getCode() - cpop.baseCode));
 					break;
 				case Opcode.DCONST_0:
-					stack.push2(new DoubleConstant(new Double(cpop.getCode() - cpop.baseCode)));
+					stack.push2(DoubleConstant.valueOf(cpop.getCode() - cpop.baseCode));
 					break;
 				default:
 					throw new RuntimeException("unsupported basecode=" + cpop.baseCode + "(" + cpop.getName() + ")");
@@ -72,9 +72,9 @@ public class DecodedConstantPushOp extends DecodedBasicOp {
 				for(int i = 0; i < getPops().length; i++) {
 					stack.pop(getPops()[i]);
 				}
-				stack.push(new IntegerConstant(cpop.decode(context, index).parameterValues[0]));
+				stack.push(IntegerConstant.valueOf(value));
 			} else if(type == OpParameterType.U1 || type == OpParameterType.U2) {
-				Object o = context.behavior.getMethodInfo().getConstPool().getLdcValue(value);
+				Object o = context.constPoolCache.getLdcValue(value);
 				if(o == null) {
 					ConstPool cp = context.behavior.getMethodInfo().getConstPool();
 					for(Method m : ConstPool.class.getDeclaredMethods()) {
@@ -93,13 +93,13 @@ public class DecodedConstantPushOp extends DecodedBasicOp {
 				if(pushes[0].equals(StackElementLength.DOUBLE) && !(o instanceof Long) && !(o instanceof Double))
 					throw new RuntimeException("Constant push of type " + op.getName() + " should push a double-size element but is not! (o = " + o + ")");
 				if(o instanceof Integer)
-					stack.push(new IntegerConstant((Integer)o));
+					stack.push(IntegerConstant.valueOf((Integer)o));
 				else if(o instanceof Long)
-					stack.push2(new LongConstant((Long)o));
+					stack.push2(LongConstant.valueOf((Long)o));
 				else if(o instanceof Float)
-					stack.push(new FloatConstant((Float)o));
+					stack.push(FloatConstant.valueOf((Float)o));
 				else if(o instanceof Double)
-					stack.push2(new DoubleConstant((Double)o));
+					stack.push2(DoubleConstant.valueOf((Double)o));
 				else if(o instanceof String)
 					stack.push(new StringConstant((String)o));
 				else throw new RuntimeException("unsupported type ??? =" + o.getClass() + "(" + cpop.code + " : " + cpop.getName() + ")");
@@ -19,10 +19,9 @@
  */
 package bytecodeparser.analysis.decoders;
 
-import static bytecodeparser.analysis.stack.Stack.StackElementLength.DOUBLE;
 import static bytecodeparser.analysis.stack.Stack.StackElementLength.ONE;
-import javassist.bytecode.Descriptor;
 import javassist.bytecode.Opcode;
+import bytecodeparser.ConstPoolCache.FieldRef;
 import bytecodeparser.Context;
 import bytecodeparser.analysis.opcodes.FieldOpcode;
 import bytecodeparser.analysis.stack.Stack;
@@ -41,12 +40,9 @@ public class DecodedFieldOp extends DecodedOp {
 	
 	public DecodedFieldOp(FieldOpcode fo, Context context, int index) {
 		super(fo, context, index);
-		String descriptor = context.behavior.getMethodInfo().getConstPool().getFieldrefType(getMethodRefIndex());
-		StackElementLength sel = ONE;
-		if(Descriptor.dataSize(descriptor) == 2)
-			sel = DOUBLE;
-		this.stackElementLength = sel;
-		this.descriptor = descriptor;
+		FieldRef fieldRef = context.constPoolCache.getFieldRef(getMethodRefIndex());
+		this.stackElementLength = fieldRef.length;
+		this.descriptor = fieldRef.descriptor;
 		this.load = fo.getCode() == Opcode.GETFIELD || fo.getCode() == Opcode.GETSTATIC;
 		this.isStatic = fo.getCode() == Opcode.GETSTATIC ||fo.getCode() == Opcode.PUTSTATIC;
 	}
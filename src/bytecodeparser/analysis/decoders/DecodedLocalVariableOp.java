@@ -63,7 +63,7 @@ public class DecodedLocalVariableOp extends DecodedOp {
 		if(parameterTypes.length > 0)
 			slot = parameterValues[0];
 		else slot = lvo.getCode() - lvo.getBaseOpcode();
-		localVariable = LocalVariable.getLocalVariable(slot, index, context.localVariables);
+		localVariable = context.getLocalVariableIndex().get(slot, index);
 		int base = lvo.getBaseOpcode();
 		this.load = lvo.isLoad();
 		doubleLength = base == Opcode.DLOAD || base == Opcode.DLOAD_0 || base == Opcode.LLOAD || base == Opcode.LLOAD_0 || base == Opcode.DSTORE || base == Opcode.DSTORE_0 || base == Opcode.LSTORE || base == Opcode.LSTORE_0;
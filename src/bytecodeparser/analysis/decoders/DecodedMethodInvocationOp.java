@@ -20,17 +20,13 @@
 package bytecodeparser.analysis.decoders;
 
 import static bytecodeparser.analysis.stack.Stack.StackElementLength.DOUBLE;
-import static bytecodeparser.analysis.stack.Stack.StackElementLength.ONE;
 
 import java.util.Arrays;
 import java.util.Iterator;
 
-import javassist.ClassPool;
 import javassist.CtClass;
-import javassist.CtPrimitiveType;
 import javassist.NotFoundException;
-import javassist.bytecode.ConstPool;
-import javassist.bytecode.Descriptor;
+import bytecodeparser.ConstPoolCache.MethodRef;
 import bytecodeparser.Context;
 import bytecodeparser.analysis.LocalVariable;
 import bytecodeparser.analysis.LocalVariableType;
@@ -43,7 +39,6 @@ import bytecodeparser.analysis.stack.TOP;
 import bytecodeparser.analysis.stack.TrackableArray;
 import bytecodeparser.analysis.stack.ValueFromLocalVariable;
 import bytecodeparser.analysis.stack.Whatever;
-import bytecodeparser.utils.Utils;
 
 /**
  * A decoded method operation op.
@@ -60,41 +55,23 @@ public class DecodedMethodInvocationOp extends DecodedOp {
 	
 	protected StackElementLength[] pops;
 	protected StackElementLength returnTypeLength;
+	protected boolean autoboxing;
+	protected final MethodRef methodRef;
 	
 	public DecodedMethodInvocationOp(MethodInvocationOpcode mop, Context context, int index) throws NotFoundException {
 		super(mop, context, index);
-		ConstPool constPool = Utils.getConstPool(context.behavior);
-		boolean interfaceMethod = constPool.getTag(getMethodRefIndex()) == ConstPool.CONST_InterfaceMethodref;
-		descriptor = interfaceMethod ? constPool.getInterfaceMethodrefType(getMethodRefIndex()) : constPool.getMethodrefType(getMethodRefIndex());
-		name = interfaceMethod ? constPool.getInterfaceMethodrefName(getMethodRefIndex()) : constPool.getMethodrefName(getMethodRefIndex());
-		declaringClassName = interfaceMethod ? constPool.getInterfaceMethodrefClassName(getMethodRefIndex()) : constPool.getMethodrefClassName(getMethodRefIndex());
-		ClassPool cp = context.behavior.getDeclaringClass().getClassPool();
-		parameterTypes = Descriptor.getParameterTypes(descriptor, cp);
-		nbParameters = parameterTypes.length;
-		StackElementLength[] pops = new StackElementLength[parameterTypes.length];
-		for(int i = parameterTypes.length - 1, j = 0; i >= 0; i--, j++) {
-			pops[j] = ONE;
-			CtClass ctClass = parameterTypes[i];
-			if(ctClass.isPrimitive()) {
-				char d = ((CtPrimitiveType) ctClass).getDescriptor();
-				if(d == 'J' || d == 'D') {
-					pops[j] = DOUBLE;
-				}
-			}
-		}
-		this.pops = pops;
-		returnType = Descriptor.getReturnType(descriptor, cp);
-		StackElementLength returnTypeLength = ONE;
-		if(returnType.isPrimitive()) {
-			char d = ((CtPrimitiveType) returnType).getDescriptor();
-			if(d == 'V') {
-				returnTypeLength = null;
-			}
-			if(d == 'J' || d == 'D') {
-				returnTypeLength = DOUBLE;
-			}
+		methodRef = context.constPoolCache.getMethodRef(getMethodRefIndex());
+		descriptor = methodRef.descriptor;
+		name = methodRef.name;
+		declaringClassName = methodRef.declaringClassName;
+		if(!context.isDescriptorOnly()) {
+			parameterTypes = methodRef.getParameterTypes();
+			returnType = methodRef.getReturnType();
 		}
-		this.returnTypeLength = returnTypeLength != null ? returnTypeLength : null;
+		nbParameters = methodRef.parameterDescriptors.length;
+		pops = methodRef.pops;
+		returnTypeLength = methodRef.returnLength;
+		autoboxing = methodRef.autoboxing;
 	}
 	
 	@Override
@@ -110,8 +87,8 @@ public class DecodedMethodInvocationOp extends DecodedOp {
 			stack.pop();
 		if(returnTypeLength != null) {
 			if(returnTypeLength == DOUBLE)
-				stack.push2(isAutoboxing ? se.copy() : new Whatever());
-			else stack.push(isAutoboxing ? se.copy() : new Whatever());
+				stack.push2(isAutoboxing ? se.copy() : Whatever.INSTANCE);
+			else stack.push(isAutoboxing ? se.copy() : Whatever.INSTANCE);
 		}
 	}
 	
@@ -145,15 +122,31 @@ public class DecodedMethodInvocationOp extends DecodedOp {
 	
 	/**
 	 * @return The parameters types of the matching method.
+	 * @throws RuntimeException in descriptor-only mode, if a type cannot be found in the class pool.
 	 */
 	public CtClass[] getParameterTypes() {
+		if(parameterTypes == null) {
+			try {
+				parameterTypes = methodRef.getParameterTypes();
+			} catch (NotFoundException e) {
+				throw new RuntimeException("cannot resolve the parameter types of " + declaringClassName + "." + name + descriptor, e);
+			}
+		}
 		return parameterTypes;
 	}
 	
 	/**
 	 * @return The return type of the matching method.
+	 * @throws RuntimeException in descriptor-only mode, if the type cannot be found in the class pool.
 	 */
 	public CtClass getReturnType() {
+		if(returnType == null) {
+			try {
+				returnType = methodRef.getReturnType();
+			} catch (NotFoundException e) {
+				throw new RuntimeException("cannot resolve the return type of " + declaringClassName + "." + name + descriptor, e);
+			}
+		}
 		return returnType;
 	}
 	
@@ -184,14 +177,7 @@ public class DecodedMethodInvocationOp extends DecodedOp {
 	}
 	
 	public boolean isAutoboxing() {
-		return name.equals("valueOf") && ("java.lang.Boolean".equals(this.declaringClassName) && descriptor.equals("(Z)Ljava/lang/Boolean;") ||
-				"java.lang.Byte".equals(declaringClassName) && descriptor.equals("(B)Ljava/lang/Byte;") ||
-				"java.lang.Character".equals(declaringClassName) && descriptor.equals("(C)L/java/lang/Character;") ||
-				"java.lang.Short".equals(declaringClassName) && descriptor.equals("(S)Ljava/lang/Short;") ||
-				"java.lang.Integer".equals(declaringClassName) && descriptor.equals("(I)Ljava/lang/Integer;") ||
-				"java.lang.Long".equals(declaringClassName) && descriptor.equals("(J)Ljava/lang/Long;") ||
-				"java.lang.Float".equals(declaringClassName) && descriptor.equals("(F)Ljava/lang/Float;") ||
-				"java.lang.Double".equals(declaringClassName) && descriptor.equals("(D)Ljava/lang/Double;"));
+		return autoboxing;
 	}
 	
 	/**
@@ -204,18 +190,19 @@ public class DecodedMethodInvocationOp extends DecodedOp {
 		DecodedMethodInvocationOp decoded = (DecodedMethodInvocationOp) frame.decodedOp;
 		int nbParams = decoded.getNbParameters();
 		MethodParam[] varargs = null;
-		MethodParam[] params = resolveParameters(frame.stackBefore.stack, nbParams, false);
+		Stack stack = frame.getStackBefore();
+		MethodParam[] params = resolveParameters(new StackIterable(stack), nbParams, false);
 		if(nbParams > 0) {
 			int stackIndex = 0;
-			if(frame.stackBefore.stack.get(stackIndex) instanceof TOP)
+			if(stack.getFromTop(stackIndex) instanceof TOP)
 				stackIndex = 1;
-			if(frame.stackBefore.stack.get(stackIndex) instanceof TrackableArray) {
-				TrackableArray trackableArray = (TrackableArray) frame.stackBefore.stack.get(stackIndex);
+			if(stack.getFromTop(stackIndex) instanceof TrackableArray) {
+				TrackableArray trackableArray = (TrackableArray) stack.getFromTop(stackIndex);
 				varargs = resolveParameters(Arrays.asList(trackableArray.elements), trackableArray.elements.length, true);
 			}
 		}
 		if(decoded.op.as(MethodInvocationOpcode.class).isInstanceMethod()) {
-			StackElement subjectSE = frame.stackBefore.stack.get(StackElementLength.add(decoded.pops));
+			StackElement subjectSE = stack.getFromTop(StackElementLength.add(decoded.pops));
 			LocalVariable lv = getLocalVariableIfAvailable(subjectSE);
 			return new MethodParams(lv != null ? new MethodParam(lv.name, lv.type) : new MethodParam(null, null), params, varargs);
 		}
@@ -255,6 +242,34 @@ public class DecodedMethodInvocationOp extends DecodedOp {
 		return result;
 	}
 	
+	/**
+	 * Iterates over the elements of a stack, from the top to the bottom.
+	 */
+	private static class StackIterable implements Iterable<StackElement> {
+		private final Stack stack;
+		StackIterable(Stack stack) {
+			this.stack = stack;
+		}
+		@Override
+		public Iterator<StackElement> iterator() {
+			return new Iterator<StackElement>() {
+				int i = 0;
+				@Override
+				public boolean hasNext() {
+					return i < stack.size();
+				}
+				@Override
+				public StackElement next() {
+					return stack.getFromTop(i++);
+				}
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+	}
+	
 	private static LocalVariable getLocalVariableIfAvailable(StackElement se) {
 		if(se instanceof ValueFromLocalVariable) {
 			ValueFromLocalVariable v = (ValueFromLocalVariable) se;
@@ -38,7 +38,7 @@ public class DecodedWideOp extends DecodedOp {
 	
 	public DecodedWideOp(WideOpcode wide, Context context, int index) {
 		super(wide, context, index);
-		wrappedDecodedLocalVariableOp = Opcodes.OPCODES.get(context.iterator.byteAt(index + 1)).as(LocalVariableOpcode.class).decodeWide(context, index);
+		wrappedDecodedLocalVariableOp = Opcodes.get(context.iterator.byteAt(index + 1)).as(LocalVariableOpcode.class).decodeWide(context, index);
 	}
 	
 	@Override
@@ -0,0 +1,44 @@
+/*
+ *  Copyright (C) 2011 Stephane Godbillon
+ *  
+ *  This file is part of BytecodeParser. See the README file in the root
+ *  directory of this project.
+ *
+ *  BytecodeParser is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+
+ *  BytecodeParser is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with BytecodeParser.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bytecodeparser.analysis.stack;
+
+import bytecodeparser.analysis.stack.StackAnalyzer.Frame;
+
+/**
+ * A listener of the simulation of the frames by a StackAnalyzer.
+ * A frame may be simulated several times, once each time the stack flowing into its block changes.
+ * @author Stephane Godbillon
+ * @see StackAnalyzer#setListener(AnalysisListener)
+ */
+public interface AnalysisListener {
+	/**
+	 * Called before the given frame is simulated.
+	 * @param frame the frame, which decodedOp is set.
+	 * @param stack the stack before the frame. It is modified by the simulation, so it must be copied to be kept.
+	 */
+	void beforeFrame(Frame frame, Stack stack);
+	
+	/**
+	 * Called after the given frame is simulated.
+	 * @param frame the frame.
+	 * @param stack the stack after the frame. It is modified by the next frames, so it must be copied to be kept.
+	 */
+	void afterFrame(Frame frame, Stack stack);
+}
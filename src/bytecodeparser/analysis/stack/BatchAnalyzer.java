@@ -0,0 +1,406 @@
+/*
+ *  Copyright (C) 2011 Stephane Godbillon
+ *  
+ *  This file is part of BytecodeParser. See the README file in the root
+ *  directory of this project.
+ *
+ *  BytecodeParser is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+
+ *  BytecodeParser is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with BytecodeParser.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bytecodeparser.analysis.stack;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import org.apache.log4j.Logger;
+
+import javassist.ClassPath;
+import javassist.ClassPool;
+import javassist.CtBehavior;
+import javassist.CtClass;
+import javassist.NotFoundException;
+import bytecodeparser.analysis.stack.StackAnalyzer.Frames;
+
+/**
+ * Analyzes every behavior of a set of classes on several threads.
+ * 
+ * The classes are read from a jar, a directory or an existing ClassPool. Since javassist ClassPools are not thread-safe,
+ * each worker thread loads the classes in its own ClassPool; when the classes come from a shared ClassPool,
+ * the class files are read from it while holding its lock.
+ * Each class is analyzed entirely by one thread, and its frames are given to the callback as soon as each behavior is analyzed.
+ * The ClassPool of a worker keeps every class resolved during the analysis, so it is replaced by a fresh one after a given number of classes.
+ * 
+ * @author Stephane Godbillon
+ *
+ */
+public class BatchAnalyzer {
+	private static final Logger LOGGER = Logger.getLogger(BatchAnalyzer.class);
+	
+	/**
+	 * The classes to analyze. Can be a jar or a directory, null if the classes come from a ClassPool.
+	 */
+	public final File source;
+	/**
+	 * The ClassPool the classes come from, null if they come from a jar or a directory.
+	 */
+	public final ClassPool pool;
+	private final Collection<String> classNames;
+	private ClassFilter filter;
+	private int nbThreads = Runtime.getRuntime().availableProcessors();
+	private boolean descriptorOnly = false;
+	private int classesPerPool = DEFAULT_CLASSES_PER_POOL;
+	
+	/**
+	 * Default number of classes a worker thread loads in a ClassPool before replacing it.
+	 */
+	public static final int DEFAULT_CLASSES_PER_POOL = 100;
+	
+	/**
+	 * Constructs an analyzer for all the classes of the given jar or directory.
+	 * @param source a jar file or a directory of class files.
+	 */
+	public BatchAnalyzer(File source) {
+		this.source = source;
+		this.pool = null;
+		this.classNames = null;
+	}
+	
+	/**
+	 * Constructs an analyzer for the given classes of a ClassPool.
+	 * @param pool the ClassPool the class files are read from.
+	 * @param classNames the fully-qualified names of the classes to analyze.
+	 */
+	public BatchAnalyzer(ClassPool pool, Collection<String> classNames) {
+		this.source = null;
+		this.pool = pool;
+		this.classNames = classNames;
+	}
+	
+	/**
+	 * Sets the filter of the classes to analyze.
+	 * @param filter
+	 * @return this analyzer for chaining.
+	 */
+	public BatchAnalyzer setFilter(ClassFilter filter) {
+		this.filter = filter;
+		return this;
+	}
+	
+	/**
+	 * Sets the descriptor-only mode, useful when the classpath is incomplete: the types referenced by the analyzed code
+	 * are not loaded.
+	 * @see StackAnalyzer#setDescriptorOnly(boolean)
+	 * @return this analyzer for chaining.
+	 */
+	public BatchAnalyzer setDescriptorOnly(boolean descriptorOnly) {
+		this.descriptorOnly = descriptorOnly;
+		return this;
+	}
+	
+	/**
+	 * Sets the number of threads of the analysis. Defaults to the number of available processors.
+	 * @param nbThreads
+	 * @return this analyzer for chaining.
+	 */
+	public BatchAnalyzer setNbThreads(int nbThreads) {
+		if(nbThreads < 1)
+			throw new IllegalArgumentException("at least one thread is needed");
+		this.nbThreads = nbThreads;
+		return this;
+	}
+	
+	/**
+	 * Sets the number of classes a worker thread loads in a ClassPool before replacing it by a fresh one,
+	 * which bounds the memory held by the classes resolved during the analysis.
+	 * @param classesPerPool
+	 * @return this analyzer for chaining.
+	 */
+	public BatchAnalyzer setClassesPerPool(int classesPerPool) {
+		if(classesPerPool < 1)
+			throw new IllegalArgumentException("at least one class per pool is needed");
+		this.classesPerPool = classesPerPool;
+		return this;
+	}
+	
+	/**
+	 * Analyzes all the behaviors of the classes accepted by the filter, and waits for the analysis to end.
+	 * The callback is called concurrently by the worker threads.
+	 * If the callback throws an exception, the analysis is stopped and this exception is thrown again.
+	 * @param callback
+	 * @throws InterruptedException if the current thread is interrupted while waiting.
+	 * @throws IOException if the classes cannot be listed.
+	 */
+	public void analyze(final Callback callback) throws InterruptedException, IOException {
+		List<String> names = listClasses();
+		final List<WorkerPool> workerPools = new ArrayList<WorkerPool>();
+		final ThreadLocal<WorkerPool> pools = new ThreadLocal<WorkerPool>() {
+			@Override
+			protected WorkerPool initialValue() {
+				WorkerPool workerPool = new WorkerPool();
+				synchronized (workerPools) {
+					workerPools.add(workerPool);
+				}
+				return workerPool;
+			}
+		};
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final ExecutorService executor = Executors.newFixedThreadPool(nbThreads);
+		try {
+			for(final String className : names) {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							analyzeClass(pools.get().acquire(), className, callback);
+						} catch (Throwable t) {
+							if(failure.compareAndSet(null, t))
+								executor.shutdownNow();
+						}
+					}
+				});
+			}
+		} finally {
+			executor.shutdown();
+		}
+		try {
+			while(!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+				// the batch has no time limit, keep waiting for the workers
+			}
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			throw e;
+		}
+		for(WorkerPool workerPool : workerPools)
+			workerPool.release();
+		Throwable t = failure.get();
+		if(t instanceof RuntimeException)
+			throw (RuntimeException) t;
+		if(t instanceof Error)
+			throw (Error) t;
+		if(t != null)
+			throw new RuntimeException(t);
+	}
+	
+	void analyzeClass(ClassPool pool, String className, Callback callback) {
+		CtClass ctClass;
+		try {
+			ctClass = pool.get(className);
+		} catch (NotFoundException e) {
+			callback.onError(className, null, e);
+			return;
+		}
+		try {
+			ClassAnalyzer analyzer;
+			CtBehavior[] behaviors;
+			try {
+				analyzer = new ClassAnalyzer(ctClass).setDescriptorOnly(descriptorOnly);
+				behaviors = ctClass.getDeclaredBehaviors();
+			} catch (RuntimeException e) {
+				callback.onError(className, null, e);
+				return;
+			}
+			for(CtBehavior behavior : behaviors) {
+				if(behavior.getMethodInfo().getCodeAttribute() == null)
+					continue;
+				Frames frames;
+				try {
+					frames = analyzer.analyze(behavior);
+				} catch (Exception e) {
+					callback.onError(className, behavior, e);
+					continue;
+				}
+				callback.onFrames(behavior, frames);
+			}
+		} finally {
+			ctClass.detach();
+		}
+	}
+	
+	/**
+	 * The ClassPool of a worker thread, replaced after classesPerPool classes.
+	 */
+	class WorkerPool {
+		private ClassPool classPool;
+		private ClassPath classPath;
+		private int nbClasses;
+		
+		/**
+		 * Gets the ClassPool to load the next class in.
+		 */
+		ClassPool acquire() {
+			if(classPool == null || nbClasses == classesPerPool) {
+				release();
+				try {
+					if(pool != null) {
+						classPool = new ClassPool(false);
+						classPath = classPool.appendClassPath(new SharedPoolClassPath(pool));
+					} else {
+						classPool = new ClassPool(true);
+						classPath = classPool.insertClassPath(source.getAbsolutePath());
+					}
+				} catch (NotFoundException e) {
+					throw new RuntimeException("cannot read classes from " + source, e);
+				}
+				nbClasses = 0;
+			}
+			nbClasses++;
+			return classPool;
+		}
+		
+		/**
+		 * Closes the class path of the current ClassPool, and forgets it.
+		 */
+		void release() {
+			if(classPool != null)
+				classPool.removeClassPath(classPath);
+			classPool = null;
+			classPath = null;
+		}
+	}
+	
+	List<String> listClasses() throws IOException {
+		List<String> result = new ArrayList<String>();
+		if(pool != null) {
+			for(String className : classNames)
+				addClass(result, className);
+		} else if(source.isDirectory()) {
+			listClasses(source, "", result);
+		} else {
+			JarFile jar = new JarFile(source);
+			try {
+				Enumeration<JarEntry> entries = jar.entries();
+				while(entries.hasMoreElements()) {
+					String name = entries.nextElement().getName();
+					if(name.endsWith(".class"))
+						addClass(result, name.substring(0, name.length() - 6).replace('/', '.'));
+				}
+			} finally {
+				jar.close();
+			}
+		}
+		if(LOGGER.isDebugEnabled())
+			LOGGER.debug(result.size() + " classes to analyze with " + nbThreads + " threads");
+		return result;
+	}
+	
+	private void listClasses(File directory, String packagePrefix, List<String> result) {
+		File[] files = directory.listFiles();
+		if(files == null)
+			return;
+		for(File file : files) {
+			String name = file.getName();
+			if(file.isDirectory())
+				listClasses(file, packagePrefix + name + ".", result);
+			else if(name.endsWith(".class"))
+				addClass(result, packagePrefix + name.substring(0, name.length() - 6));
+		}
+	}
+	
+	private void addClass(List<String> result, String className) {
+		if(filter == null || filter.accept(className))
+			result.add(className);
+	}
+	
+	/**
+	 * A filter of the classes to analyze.
+	 * @author Stephane Godbillon
+	 *
+	 */
+	public static interface ClassFilter {
+		/**
+		 * States if the class of the given name should be analyzed.
+		 * @param className the fully-qualified name of the class.
+		 */
+		boolean accept(String className);
+	}
+	
+	/**
+	 * Receives the results of a BatchAnalyzer. Its methods are called concurrently by the worker threads.
+	 * @author Stephane Godbillon
+	 *
+	 */
+	public static interface Callback {
+		/**
+		 * Called when a behavior has been analyzed.
+		 * @param behavior the behavior, loaded in the ClassPool of the current worker thread.
+		 * @param frames the frames of the behavior.
+		 */
+		void onFrames(CtBehavior behavior, Frames frames);
+		/**
+		 * Called when a class cannot be loaded or a behavior cannot be analyzed. The analysis of the other behaviors goes on.
+		 * @param className the name of the class.
+		 * @param behavior the behavior which analysis failed, null if the class could not be loaded.
+		 * @param e the cause.
+		 */
+		void onError(String className, CtBehavior behavior, Exception e);
+	}
+	
+	/**
+	 * A ClassPath reading the class files of a shared ClassPool, while holding its lock.
+	 */
+	static class SharedPoolClassPath implements ClassPath {
+		private final ClassPool pool;
+		
+		SharedPoolClassPath(ClassPool pool) {
+			this.pool = pool;
+		}
+		
+		@Override
+		public InputStream openClassfile(String classname) throws NotFoundException {
+			synchronized (pool) {
+				URL url = pool.find(classname);
+				if(url == null)
+					return null;
+				try {
+					InputStream in = url.openStream();
+					try {
+						ByteArrayOutputStream out = new ByteArrayOutputStream();
+						byte[] buffer = new byte[8192];
+						int read;
+						while((read = in.read(buffer)) != -1)
+							out.write(buffer, 0, read);
+						return new ByteArrayInputStream(out.toByteArray());
+					} finally {
+						in.close();
+					}
+				} catch (IOException e) {
+					throw new NotFoundException("cannot read class " + classname, e);
+				}
+			}
+		}
+		
+		@Override
+		public URL find(String classname) {
+			synchronized (pool) {
+				return pool.find(classname);
+			}
+		}
+		
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ *  Copyright (C) 2011 Stephane Godbillon
+ *  
+ *  This file is part of BytecodeParser. See the README file in the root
+ *  directory of this project.
+ *
+ *  BytecodeParser is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+
+ *  BytecodeParser is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with BytecodeParser.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bytecodeparser.analysis.stack;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javassist.CtBehavior;
+import javassist.CtClass;
+import javassist.bytecode.BadBytecode;
+import bytecodeparser.ConstPoolCache;
+import bytecodeparser.Context;
+import bytecodeparser.analysis.stack.StackAnalyzer.Frames;
+
+/**
+ * Analyzes the behaviors of a class.
+ * 
+ * All the analyses share the cache of the constant pool of the class (method and field refs, class infos, constants),
+ * so each entry is decoded once for the whole class, and the scratch worklist of the analyzers is reused.
+ * A ClassAnalyzer is not thread-safe.
+ * @author Stephane Godbillon
+ *
+ */
+public class ClassAnalyzer {
+	/**
+	 * The analyzed class.
+	 */
+	public final CtClass clazz;
+	/**
+	 * The cache shared by the analyses of the behaviors of the class.
+	 */
+	public final ConstPoolCache constPoolCache;
+	private int maxIterations = StackAnalyzer.DEFAULT_MAX_ITERATIONS;
+	private boolean lazyStacks = false;
+	private boolean descriptorOnly = false;
+	private StackAnalyzer.Worklist worklist;
+	
+	public ClassAnalyzer(CtClass clazz) {
+		this.clazz = clazz;
+		this.constPoolCache = new ConstPoolCache(clazz.getClassFile2().getConstPool(), clazz.getClassPool());
+	}
+	
+	/**
+	 * @see StackAnalyzer#setMaxIterations(int)
+	 * @return this analyzer for chaining.
+	 */
+	public ClassAnalyzer setMaxIterations(int maxIterations) {
+		this.maxIterations = maxIterations;
+		return this;
+	}
+	
+	/**
+	 * @see StackAnalyzer#setLazyStacks(boolean)
+	 * @return this analyzer for chaining.
+	 */
+	public ClassAnalyzer setLazyStacks(boolean lazyStacks) {
+		this.lazyStacks = lazyStacks;
+		return this;
+	}
+	
+	/**
+	 * @see StackAnalyzer#setDescriptorOnly(boolean)
+	 * @return this analyzer for chaining.
+	 */
+	public ClassAnalyzer setDescriptorOnly(boolean descriptorOnly) {
+		this.descriptorOnly = descriptorOnly;
+		return this;
+	}
+	
+	/**
+	 * Analyzes the declared behaviors of the class that have some code (the abstract and native ones are skipped).
+	 * @return the frames of each behavior, in declaration order.
+	 * @throws BadBytecode if the bytecode of a behavior is wrong.
+	 */
+	public Map<CtBehavior, Frames> analyze() throws BadBytecode {
+		Map<CtBehavior, Frames> result = new LinkedHashMap<CtBehavior, Frames>();
+		for(CtBehavior behavior : clazz.getDeclaredBehaviors())
+			if(behavior.getMethodInfo().getCodeAttribute() != null)
+				result.put(behavior, analyze(behavior));
+		return result;
+	}
+	
+	/**
+	 * Analyzes one behavior of the class.
+	 * @param behavior a behavior declared by the class.
+	 * @return its frames.
+	 * @throws BadBytecode if the bytecode of this behavior is wrong.
+	 */
+	public Frames analyze(CtBehavior behavior) throws BadBytecode {
+		StackAnalyzer analyzer = new StackAnalyzer(new Context(behavior, constPoolCache));
+		analyzer.setMaxIterations(maxIterations).setLazyStacks(lazyStacks).setDescriptorOnly(descriptorOnly);
+		analyzer.worklist = worklist;
+		try {
+			return analyzer.analyze();
+		} finally {
+			worklist = analyzer.worklist;
+		}
+	}
+}
@@ -33,6 +33,14 @@ public abstract class Constant<T> extends StackElement {
 		this.value = value;
 	}
 	
+	/**
+	 * Constants are immutable, so the copy of a constant is the constant itself.
+	 */
+	@Override
+	public StackElement copy() {
+		return this;
+	}
+	
 	/**
 	 * @return The wrapped value.
 	 */
@@ -54,10 +62,6 @@ public abstract class Constant<T> extends StackElement {
 		public StringConstant(String value) {
 			super(value);
 		}
-		@Override
-		public StackElement copy() {
-			return new StringConstant(value);
-		}
 	}
 
 	/**
@@ -66,11 +70,23 @@ public abstract class Constant<T> extends StackElement {
 	 *
 	 */
 	public static class IntegerConstant extends Constant<Integer> {
+		// the caches live in the subclasses: Constant must not depend on them to be initialized
+		private static final int CACHE_LOW = -128, CACHE_HIGH = 127;
+		private static final IntegerConstant[] INTEGERS = new IntegerConstant[CACHE_HIGH - CACHE_LOW + 1];
+		static {
+			for(int i = 0; i < INTEGERS.length; i++)
+				INTEGERS[i] = new IntegerConstant(i + CACHE_LOW);
+		}
+		
 		public IntegerConstant(Integer value) {
 			super(value);
 		}
-		@Override
-		public StackElement copy() {
+		/**
+		 * Gets an IntegerConstant of the given value. The constants between -128 and 127 are cached.
+		 */
+		public static IntegerConstant valueOf(int value) {
+			if(value >= CACHE_LOW && value <= CACHE_HIGH)
+				return INTEGERS[value - CACHE_LOW];
 			return new IntegerConstant(value);
 		}
 	}
@@ -81,11 +97,18 @@ public abstract class Constant<T> extends StackElement {
 	 *
 	 */
 	public static class FloatConstant extends Constant<Float> {
+		private static final FloatConstant[] FLOATS = { new FloatConstant(0f), new FloatConstant(1f), new FloatConstant(2f) };
+		
 		public FloatConstant(Float value) {
 			super(value);
 		}
-		@Override
-		public StackElement copy() {
+		/**
+		 * Gets a FloatConstant of the given value. The constants pushed by fconst_&lt;n&gt; are cached.
+		 */
+		public static FloatConstant valueOf(float value) {
+			for(FloatConstant constant : FLOATS)
+				if(Float.floatToIntBits(constant.value) == Float.floatToIntBits(value))
+					return constant;
 			return new FloatConstant(value);
 		}
 	}
@@ -96,11 +119,17 @@ public abstract class Constant<T> extends StackElement {
 	 *
 	 */
 	public static class LongConstant extends Constant<Long> {
+		private static final LongConstant[] LONGS = { new LongConstant(0L), new LongConstant(1L) };
+		
 		public LongConstant(Long value) {
 			super(value);
 		}
-		@Override
-		public StackElement copy() {
+		/**
+		 * Gets a LongConstant of the given value. The constants pushed by lconst_&lt;n&gt; are cached.
+		 */
+		public static LongConstant valueOf(long value) {
+			if(value >= 0 && value < LONGS.length)
+				return LONGS[(int) value];
 			return new LongConstant(value);
 		}
 	}
@@ -111,11 +140,18 @@ public abstract class Constant<T> extends StackElement {
 	 *
 	 */
 	public static class DoubleConstant extends Constant<Double> {
+		private static final DoubleConstant[] DOUBLES = { new DoubleConstant(0d), new DoubleConstant(1d) };
+		
 		public DoubleConstant(Double value) {
 			super(value);
 		}
-		@Override
-		public StackElement copy() {
+		/**
+		 * Gets a DoubleConstant of the given value. The constants pushed by dconst_&lt;n&gt; are cached.
+		 */
+		public static DoubleConstant valueOf(double value) {
+			for(DoubleConstant constant : DOUBLES)
+				if(Double.doubleToLongBits(constant.value) == Double.doubleToLongBits(value))
+					return constant;
 			return new DoubleConstant(value);
 		}
 	}
@@ -129,9 +165,5 @@ public abstract class Constant<T> extends StackElement {
 		public WhateverConstant(Object value) {
 			super(value);
 		}
-		@Override
-		public StackElement copy() {
-			return new WhateverConstant(value);
-		}
 	}
 }
@@ -0,0 +1,443 @@
+/*
+ *  Copyright (C) 2011 Stephane Godbillon
+ *  
+ *  This file is part of BytecodeParser. See the README file in the root
+ *  directory of this project.
+ *
+ *  BytecodeParser is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+
+ *  BytecodeParser is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with BytecodeParser.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bytecodeparser.analysis.stack;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import javassist.bytecode.BadBytecode;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.CodeIterator;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.ExceptionTable;
+import javassist.bytecode.LineNumberAttribute;
+import javassist.bytecode.LocalVariableAttribute;
+import javassist.bytecode.Opcode;
+import javassist.bytecode.StackMap;
+import javassist.bytecode.StackMapTable;
+import bytecodeparser.analysis.stack.StackAnalyzer.Frame;
+import bytecodeparser.analysis.stack.StackAnalyzer.Frames;
+
+/**
+ * Collects bytecode insertions before or after frames, and applies them all at once.
+ * 
+ * Unlike FrameIterator.insert(), which shifts the whole code and all the frames for each insertion, apply() rebuilds the
+ * code array once, then fixes the branch offsets, the exception table, the LineNumberTable, the LocalVariableTable,
+ * the LocalVariableTypeTable, the StackMapTable and the indexes of the frames in a single pass.
+ * 
+ * The code inserted before a frame belongs to this frame: the branches, exception handlers, line numbers and local
+ * variables starting at the frame include it. The code inserted after a frame belongs to this frame too, so the jumps to
+ * the next frame skip it. If the method contains a switch, each gap is padded with NOPs to a multiple of 4 bytes to keep
+ * the switches aligned; the padding goes after the code inserted before the frame.
+ * 
+ * The FrameIterators opened before apply() must not be used afterwards.
+ * @author Stephane Godbillon
+ *
+ */
+public class FrameEditor {
+	private final Frames frames;
+	private final List<Insertion> insertions = new ArrayList<Insertion>();
+	
+	public FrameEditor(Frames frames) {
+		this.frames = frames;
+	}
+	
+	/**
+	 * Inserts the given bytecode before the given frame.
+	 * @return this editor for chaining.
+	 */
+	public FrameEditor insertBefore(Frame frame, byte[] code) {
+		insertions.add(new Insertion(frame, false, code, insertions.size()));
+		return this;
+	}
+	
+	/**
+	 * Inserts the given bytecode after the given frame.
+	 * @return this editor for chaining.
+	 */
+	public FrameEditor insertAfter(Frame frame, byte[] code) {
+		insertions.add(new Insertion(frame, true, code, insertions.size()));
+		return this;
+	}
+	
+	/**
+	 * Applies the pending insertions. The insertions at the same place are laid out in the order they were requested.
+	 * @throws BadBytecode if the resulting code is too big, or a branch offset does not fit any more.
+	 */
+	public void apply() throws BadBytecode {
+		if(insertions.isEmpty())
+			return;
+		CodeAttribute codeAttribute = frames.behavior.getMethodInfo().getCodeAttribute();
+		if(codeAttribute.getAttribute(StackMap.tag) != null)
+			throw new BadBytecode("the StackMap attribute (J2ME) is not supported");
+		byte[] code = codeAttribute.getCode().clone();
+		
+		// instruction starts, and whether the code has some switches that must stay aligned
+		int[] instructions = new int[code.length + 1];
+		int nbInstructions = 0;
+		boolean hasSwitch = false;
+		CodeIterator iterator = codeAttribute.iterator();
+		while(iterator.hasNext()) {
+			int index = iterator.next();
+			instructions[nbInstructions++] = index;
+			int opcode = code[index] & 0xff;
+			hasSwitch |= opcode == Opcode.TABLESWITCH || opcode == Opcode.LOOKUPSWITCH;
+		}
+		instructions[nbInstructions] = code.length;
+		
+		for(Insertion insertion : insertions) {
+			if(insertion.after) {
+				int i = binarySearch(instructions, nbInstructions + 1, insertion.frame.index);
+				if(i < 0 || i == nbInstructions)
+					throw new BadBytecode("no instruction at " + insertion.frame.index);
+				insertion.pos = instructions[i + 1];
+			} else insertion.pos = insertion.frame.index;
+		}
+		Collections.sort(insertions, ORDER);
+		Gaps gaps = new Gaps(insertions, hasSwitch);
+		int newLength = code.length + gaps.total;
+		if(newLength > 65535)
+			throw new BadBytecode("the code would be " + newLength + " bytes long");
+		
+		iterator.appendGap(gaps.total);
+		byte[] newCode = codeAttribute.getCode();
+		int j = 0, k = 0;
+		for(int n = 0; n <= nbInstructions; n++) {
+			int i = instructions[n];
+			if(k < gaps.size && gaps.positions[k] == i) {
+				j = gaps.write(k, newCode, j);
+				k++;
+			}
+			if(n < nbInstructions)
+				j = copy(code, i, instructions[n + 1], newCode, j, gaps);
+		}
+		if(k != gaps.size)
+			throw new BadBytecode("cannot insert at " + gaps.positions[k] + ": not an instruction");
+		
+		ExceptionTable exceptionTable = codeAttribute.getExceptionTable();
+		for(int i = 0; i < exceptionTable.size(); i++) {
+			exceptionTable.setStartPc(i, gaps.label(exceptionTable.startPc(i)));
+			exceptionTable.setEndPc(i, gaps.label(exceptionTable.endPc(i)));
+			exceptionTable.setHandlerPc(i, gaps.label(exceptionTable.handlerPc(i)));
+		}
+		LineNumberAttribute lineNumbers = (LineNumberAttribute) codeAttribute.getAttribute(LineNumberAttribute.tag);
+		if(lineNumbers != null) {
+			byte[] info = lineNumbers.get();
+			for(int i = 0; i < lineNumbers.tableLength(); i++)
+				write16bit(info, 2 + i * 4, gaps.label(lineNumbers.startPc(i)));
+		}
+		shiftLocalVariables((LocalVariableAttribute) codeAttribute.getAttribute(LocalVariableAttribute.tag), gaps);
+		shiftLocalVariables((LocalVariableAttribute) codeAttribute.getAttribute(LocalVariableAttribute.typeTag), gaps);
+		StackMapTable stackMapTable = (StackMapTable) codeAttribute.getAttribute(StackMapTable.tag);
+		if(stackMapTable != null)
+			codeAttribute.setAttribute(new StackMapShifter(stackMapTable, gaps).shift(codeAttribute.getConstPool()));
+		
+		for(Frame frame : frames.frames)
+			if(frame != null)
+				frame.index = gaps.instruction(frame.index);
+		if(frames.context != null) {
+			// from the end, so that the positions of the remaining gaps are still valid
+			for(int i = gaps.size - 1; i >= 0; i--) {
+				frames.context.bytecodeInserted(gaps.positions[i], gaps.lengths[i] - gaps.afterLengths[i]);
+				frames.context.bytecodeInserted(gaps.positions[i] - 1, gaps.afterLengths[i]);
+			}
+		}
+		insertions.clear();
+	}
+	
+	/**
+	 * Copies the instruction [i, end[ of the old code at j in the new code, fixing its branch offsets.
+	 */
+	private static int copy(byte[] code, int i, int end, byte[] newCode, int j, Gaps gaps) throws BadBytecode {
+		int opcode = code[i] & 0xff;
+		int newIndex = j;
+		if((opcode >= Opcode.IFEQ && opcode <= Opcode.JSR) || opcode == Opcode.IFNULL || opcode == Opcode.IFNONNULL) {
+			int offset = gaps.label(i + (short) read16bit(code, i + 1)) - newIndex;
+			if(offset < Short.MIN_VALUE || offset > Short.MAX_VALUE)
+				throw new BadBytecode("the branch at " + i + " cannot reach its target any more");
+			newCode[j] = code[i];
+			write16bit(newCode, j + 1, offset);
+			return j + 3;
+		}
+		if(opcode == Opcode.GOTO_W || opcode == Opcode.JSR_W) {
+			newCode[j] = code[i];
+			write32bit(newCode, j + 1, gaps.label(i + read32bit(code, i + 1)) - newIndex);
+			return j + 5;
+		}
+		if(opcode == Opcode.TABLESWITCH || opcode == Opcode.LOOKUPSWITCH) {
+			// the gaps keep the alignment, so the padding does not change
+			System.arraycopy(code, i, newCode, j, end - i);
+			int base = (i & ~3) + 4;
+			write32bit(newCode, j + base - i, gaps.label(i + read32bit(code, base)) - newIndex);
+			if(opcode == Opcode.TABLESWITCH) {
+				int nbOffsets = read32bit(code, base + 8) - read32bit(code, base + 4) + 1;
+				for(int p = base + 12; p < base + 12 + nbOffsets * 4; p += 4)
+					write32bit(newCode, j + p - i, gaps.label(i + read32bit(code, p)) - newIndex);
+			} else {
+				int nbPairs = read32bit(code, base + 4);
+				for(int p = base + 12; p < base + 8 + nbPairs * 8; p += 8)
+					write32bit(newCode, j + p - i, gaps.label(i + read32bit(code, p)) - newIndex);
+			}
+			return j + end - i;
+		}
+		System.arraycopy(code, i, newCode, j, end - i);
+		return j + end - i;
+	}
+	
+	private static void shiftLocalVariables(LocalVariableAttribute attribute, Gaps gaps) {
+		if(attribute == null)
+			return;
+		byte[] info = attribute.get();
+		for(int i = 0; i < attribute.tableLength(); i++) {
+			int start = attribute.startPc(i), end = start + attribute.codeLength(i);
+			int newStart = gaps.label(start);
+			write16bit(info, 2 + i * 10, newStart);
+			write16bit(info, 4 + i * 10, gaps.label(end) - newStart);
+		}
+	}
+	
+	private static int binarySearch(int[] array, int length, int key) {
+		int low = 0, high = length - 1;
+		while(low <= high) {
+			int middle = (low + high) >>> 1;
+			if(array[middle] < key)
+				low = middle + 1;
+			else if(array[middle] > key)
+				high = middle - 1;
+			else return middle;
+		}
+		return -(low + 1);
+	}
+	
+	static int read16bit(byte[] code, int i) {
+		return ((code[i] & 0xff) << 8) | (code[i + 1] & 0xff);
+	}
+	
+	static int read32bit(byte[] code, int i) {
+		return (code[i] << 24) | ((code[i + 1] & 0xff) << 16) | ((code[i + 2] & 0xff) << 8) | (code[i + 3] & 0xff);
+	}
+	
+	static void write16bit(byte[] code, int i, int value) {
+		code[i] = (byte) (value >>> 8);
+		code[i + 1] = (byte) value;
+	}
+	
+	static void write32bit(byte[] code, int i, int value) {
+		code[i] = (byte) (value >>> 24);
+		code[i + 1] = (byte) (value >>> 16);
+		code[i + 2] = (byte) (value >>> 8);
+		code[i + 3] = (byte) value;
+	}
+	
+	private static final Comparator<Insertion> ORDER = new Comparator<Insertion>() {
+		@Override
+		public int compare(Insertion a, Insertion b) {
+			if(a.pos != b.pos)
+				return a.pos < b.pos ? -1 : 1;
+			// at the same place, the code inserted after the previous frame comes first
+			if(a.after != b.after)
+				return a.after ? -1 : 1;
+			return a.sequence - b.sequence;
+		}
+	};
+	
+	private static class Insertion {
+		final Frame frame;
+		final boolean after;
+		final byte[] code;
+		final int sequence;
+		int pos;
+		
+		Insertion(Frame frame, boolean after, byte[] code, int sequence) {
+			this.frame = frame;
+			this.after = after;
+			this.code = code;
+			this.sequence = sequence;
+		}
+	}
+	
+	/**
+	 * The gaps to insert, sorted by position. A gap is laid out as [code inserted after the previous frame][code inserted before the frame][NOP padding].
+	 */
+	static class Gaps {
+		final int size;
+		final int[] positions;
+		final int[] lengths;
+		final int[] afterLengths;
+		/**
+		 * The total length of the gaps strictly before each gap.
+		 */
+		final int[] offsets;
+		final byte[][] codes;
+		final int total;
+		
+		Gaps(List<Insertion> insertions, boolean aligned) {
+			int n = 0;
+			for(int i = 0; i < insertions.size(); i++)
+				if(i == 0 || insertions.get(i).pos != insertions.get(i - 1).pos)
+					n++;
+			size = n;
+			positions = new int[n];
+			lengths = new int[n];
+			afterLengths = new int[n];
+			offsets = new int[n];
+			codes = new byte[n][];
+			int k = -1, total = 0;
+			int[] beforeLengths = new int[n];
+			for(Insertion insertion : insertions) {
+				if(k == -1 || positions[k] != insertion.pos)
+					positions[++k] = insertion.pos;
+				if(insertion.after)
+					afterLengths[k] += insertion.code.length;
+				else beforeLengths[k] += insertion.code.length;
+			}
+			for(k = 0; k < n; k++) {
+				int length = afterLengths[k] + beforeLengths[k];
+				if(aligned)
+					length = (length + 3) & ~3;
+				lengths[k] = length;
+				offsets[k] = total;
+				total += length;
+				codes[k] = new byte[length];
+			}
+			this.total = total;
+			int[] after = new int[n], before = new int[n];
+			k = -1;
+			for(Insertion insertion : insertions) {
+				if(k == -1 || positions[k] != insertion.pos)
+					k++;
+				byte[] code = codes[k];
+				if(insertion.after) {
+					System.arraycopy(insertion.code, 0, code, after[k], insertion.code.length);
+					after[k] += insertion.code.length;
+				} else {
+					System.arraycopy(insertion.code, 0, code, afterLengths[k] + before[k], insertion.code.length);
+					before[k] += insertion.code.length;
+				}
+			}
+			for(k = 0; k < n; k++)
+				for(int i = afterLengths[k] + beforeLengths[k]; i < lengths[k]; i++)
+					codes[k][i] = (byte) Opcode.NOP;
+		}
+		
+		int write(int k, byte[] newCode, int j) {
+			System.arraycopy(codes[k], 0, newCode, j, lengths[k]);
+			return j + lengths[k];
+		}
+		
+		/**
+		 * Gets the index of the last gap at or before the given position, -1 if none.
+		 */
+		private int find(int pos) {
+			int i = binarySearch(positions, size, pos);
+			return i >= 0 ? i : -i - 2;
+		}
+		
+		/**
+		 * Gets the new index of the instruction at the given position.
+		 */
+		int instruction(int pos) {
+			int k = find(pos);
+			return k < 0 ? pos : pos + offsets[k] + lengths[k];
+		}
+		
+		/**
+		 * Gets the new position of a label (a branch target, a range bound...) at the given position:
+		 * it is the start of the code inserted before the instruction at this position, if any.
+		 */
+		int label(int pos) {
+			int k = find(pos);
+			if(k < 0)
+				return pos;
+			if(positions[k] == pos)
+				return pos + offsets[k] + afterLengths[k];
+			return pos + offsets[k] + lengths[k];
+		}
+	}
+	
+	/**
+	 * Rewrites a StackMapTable, moving each frame to the label of its position.
+	 */
+	static class StackMapShifter extends StackMapTable.Walker {
+		private final Gaps gaps;
+		private final StackMapTable.Writer writer;
+		private int position = -1, newPosition = -1;
+		
+		StackMapShifter(StackMapTable stackMapTable, Gaps gaps) {
+			super(stackMapTable);
+			this.gaps = gaps;
+			this.writer = new StackMapTable.Writer(stackMapTable.length() + 16);
+		}
+		
+		StackMapTable shift(ConstPool constPool) throws BadBytecode {
+			parse();
+			return writer.toStackMapTable(constPool);
+		}
+		
+		/**
+		 * Computes the new offset delta of a frame from its old one.
+		 */
+		private int delta(int offsetDelta) {
+			position = position == -1 ? offsetDelta : position + offsetDelta + 1;
+			int label = gaps.label(position);
+			int delta = newPosition == -1 ? label : label - newPosition - 1;
+			newPosition = label;
+			return delta;
+		}
+		
+		private int data(int tag, int data) {
+			return tag == StackMapTable.UNINIT ? gaps.instruction(data) : data;
+		}
+		
+		private int[] data(int[] tags, int[] data) {
+			int[] result = new int[data.length];
+			for(int i = 0; i < data.length; i++)
+				result[i] = data(tags[i], data[i]);
+			return result;
+		}
+		
+		@Override
+		public void sameFrame(int pos, int offsetDelta) {
+			writer.sameFrame(delta(offsetDelta));
+		}
+		
+		@Override
+		public void sameLocals(int pos, int offsetDelta, int stackTag, int stackData) {
+			writer.sameLocals(delta(offsetDelta), stackTag, data(stackTag, stackData));
+		}
+		
+		@Override
+		public void chopFrame(int pos, int offsetDelta, int k) {
+			writer.chopFrame(delta(offsetDelta), k);
+		}
+		
+		@Override
+		public void appendFrame(int pos, int offsetDelta, int[] tags, int[] data) {
+			writer.appendFrame(delta(offsetDelta), tags, data(tags, data));
+		}
+		
+		@Override
+		public void fullFrame(int pos, int offsetDelta, int[] localTags, int[] localData, int[] stackTags, int[] stackData) {
+			writer.fullFrame(delta(offsetDelta), localTags, data(localTags, localData), stackTags, data(stackTags, stackData));
+		}
+	}
+}
@@ -21,18 +21,25 @@ package bytecodeparser.analysis.stack;
 
 import static bytecodeparser.analysis.stack.Stack.StackElementLength.DOUBLE;
 
-import java.util.LinkedList;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
 
 import org.apache.log4j.Logger;
 
 /**
  * Represents the current stack's state.
  * 
+ * The elements are held in an array which top is at the end. Copies share this array until one of them is modified
+ * (copy-on-write), so that taking a snapshot of the stack before and after each frame is cheap.
+ * 
  * @author Stephane Godbillon
  *
  */
 public class Stack {
 	private static final Logger LOGGER = Logger.getLogger(Stack.class);
+	private static final int DEFAULT_CAPACITY = 8;
 	
 	/**
 	 * Length of a stack element. Can be one or two words.
@@ -63,18 +70,52 @@ public class Stack {
 		}
 	}
 	
+	private StackElement[] elements;
+	private int size;
+	/**
+	 * States if the elements array may be referenced by another Stack instance (and must be copied before any write).
+	 */
+	private boolean shared;
+	
+	/**
+	 * List view of this stack's elements, the first element being the top of the stack.
+	 * It is backed by this stack: changes made through this view are reflected in the stack, and vice versa.
+	 * @deprecated use the methods of this class instead of accessing this field.
+	 */
+	@Deprecated
+	public List<StackElement> stack = new StackListView(this);
+	
+	public Stack() {
+		this(DEFAULT_CAPACITY);
+	}
+	
 	/**
-	 * Linked List holding the references of this stack's elements.
-	 * It is preferable to use the methods of this class instead of accessing this field.
+	 * Constructs an empty stack.
+	 * @param capacity the expected maximum number of words of this stack (like the max_stack of a CodeAttribute). The stack grows if needed.
 	 */
-	public LinkedList<StackElement> stack = new LinkedList<StackElement>();
+	public Stack(int capacity) {
+		this.elements = new StackElement[capacity > 0 ? capacity : DEFAULT_CAPACITY];
+	}
+	
+	private Stack(StackElement[] elements, int size) {
+		this.elements = elements;
+		this.size = size;
+		this.shared = true;
+	}
 	
 	/**
 	 * States if this stack is empty.
 	 * @return true if this stack is empty, false if not.
 	 */
 	public boolean isEmpty() {
-		return stack.size() == 0;
+		return size == 0;
+	}
+	
+	/**
+	 * @return the number of words in this stack (two-words elements count for two).
+	 */
+	public int size() {
+		return size;
 	}
 	
 	/**
@@ -85,7 +126,7 @@ public class Stack {
 	 * @return the removed stackElement.
 	 */
 	public StackElement pop() {
-		StackElement se = stack.pop();
+		StackElement se = removeTop();
 		if(se instanceof TOP)
 			throw new RuntimeException("WARN: popped a TOP!");
 		return se;
@@ -99,10 +140,10 @@ public class Stack {
 	 * @return the removed stackElement.
 	 */
 	public StackElement pop2() {
-		StackElement se = stack.pop();
+		StackElement se = removeTop();
 		if( !(se instanceof TOP) )
 			throw new RuntimeException("WARN: popped2 top is not a TOP! (is instanceof " + se.getClass() + ")");
-		se = stack.pop();
+		se = removeTop();
 		if(se instanceof TOP)
 			throw new RuntimeException("WARN: popped2 a TOP!");
 		return se;
@@ -120,14 +161,30 @@ public class Stack {
 		return pop();
 	}
 	
+	/**
+	 * Removes the given number of words from the top of this stack, whatever they are (TOP included).
+	 * @param words
+	 * @throws java.util.NoSuchElementException if this stack holds less than the given number of words.
+	 * @return the current Stack instance for chaining.
+	 */
+	public Stack discard(int words) {
+		if(words > size)
+			throw new NoSuchElementException();
+		makeWritable(0);
+		Arrays.fill(elements, size - words, size, null);
+		size -= words;
+		return this;
+	}
+	
 	/**
 	 * Returns the top stackElement from this stack.
 	 * The stackElement might be a a TOP (part of a two-words element).
-	 * @throws java.util.NoSuchElementException if this stack is empty.
-	 * @return the stackElement.
+	 * @return the stackElement, or null if this stack is empty.
 	 */
 	public StackElement peek() {
-		StackElement se = stack.peek();
+		if(size == 0)
+			return null;
+		StackElement se = elements[size - 1];
 		if(se instanceof TOP)
 			LOGGER.warn("WARN: popped a TOP!");
 		return se;
@@ -136,11 +193,11 @@ public class Stack {
 	/**
 	 * Returns the top-1 stackElement from this stack.
 	 * The stackElement might be a a TOP (part of a two-words element).
-	 * @throws java.util.NoSuchElementException if this stack is empty.
+	 * @throws IndexOutOfBoundsException if this stack holds less than two words.
 	 * @return the stackElement.
 	 */
 	public StackElement peek2() {
-		StackElement se = stack.get(stack.size() - 2);
+		StackElement se = getFromTop(1);
 		if(se instanceof TOP)
 			LOGGER.warn("WARN: peek2 a TOP!");
 		return se;
@@ -164,7 +221,8 @@ public class Stack {
 	 * @return the current Stack instance for chaining.
 	 */
 	public Stack push(StackElement se) {
-		stack.push(se);
+		makeWritable(1);
+		elements[size++] = se;
 		return this;
 	}
 	
@@ -174,37 +232,57 @@ public class Stack {
 	 * @return the current Stack instance for chaining.
 	 */
 	public Stack push2(StackElement se) {
-		stack.push(se);
-		stack.push(new TOP());
+		makeWritable(2);
+		elements[size++] = se;
+		elements[size++] = TOP.INSTANCE;
 		return this;
 	}
 	
 	/**
 	 * Get the n-ith element from the stack.
 	 * @param i
+	 * @throws IndexOutOfBoundsException if i is negative or not lower than the size of this stack.
 	 * @return the stackElement. Can be a TOP (part of a two-words element).
 	 */
 	public StackElement getFromTop(int i) {
-		return stack.get(i);
+		return elements[toArrayIndex(i)];
+	}
+	
+	/**
+	 * Inserts the given element in the stack, so that it becomes the n-ith element from the top.
+	 * @param i the position of the inserted element from the top. 0 is equivalent to a push.
+	 * @param se
+	 * @throws IndexOutOfBoundsException if i is negative or greater than the size of this stack.
+	 * @return the current Stack instance for chaining.
+	 */
+	public Stack insertFromTop(int i, StackElement se) {
+		if(i < 0 || i > size)
+			throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+		makeWritable(1);
+		int at = size - i;
+		System.arraycopy(elements, at, elements, at + 1, i);
+		elements[at] = se;
+		size++;
+		return this;
 	}
 	
 	/**
 	 * Makes a copy of this Stack instance.
+	 * Both stacks share the same elements until one of them gets modified.
 	 * @return a new Stack instance containing the same elements.
 	 */
 	public Stack copy() {
-		Stack copy = new Stack();
-		copy.stack = new LinkedList<StackElement>(this.stack);
-		return copy;
+		shared = true;
+		return new Stack(elements, size);
 	}
 	
 	@Override
 	public String toString() {
 		StringBuffer sb = new StringBuffer("stack: [");
-		for(int i = 0; i < stack.size(); i++) {
+		for(int i = 0; i < size; i++) {
 			if(i > 0)
 				sb.append(", ");
-			sb.append(stack.get(i));
+			sb.append(getFromTop(i));
 		}
 		return sb.append("]").toString();
 	}
@@ -224,8 +302,142 @@ public class Stack {
 		}
 		for(int i = 0; i < pushes.length; i++) {
 			if(pushes[i] == DOUBLE)
-				stack.push2(new Whatever());
-			else stack.push(new Whatever());
+				stack.push2(Whatever.INSTANCE);
+			else stack.push(Whatever.INSTANCE);
+		}
+	}
+	
+	/**
+	 * Merges two states of the stack meeting at a join point of the control flow.
+	 * The elements that differ between both stacks are replaced by a Whatever element (or a simple Array if both are arrays of the same signature).
+	 * @param stack
+	 * @param other
+	 * @return the given stack if merging the other one does not change it, a new Stack instance otherwise.
+	 * @throws RuntimeException if the stacks do not have the same height, or if their two-words elements do not match.
+	 */
+	public static Stack merge(Stack stack, Stack other) {
+		if(stack.size != other.size)
+			throw new RuntimeException("cannot merge stacks of different heights: " + stack + " and " + other);
+		Stack result = stack;
+		for(int i = 0; i < stack.size; i++) {
+			StackElement se = stack.elements[i];
+			StackElement merged = merge(se, other.elements[i]);
+			if(merged != se) {
+				if(result == stack)
+					result = stack.copy();
+				result.makeWritable(0);
+				result.elements[i] = merged;
+			}
+		}
+		return result;
+	}
+	
+	private static StackElement merge(StackElement se, StackElement other) {
+		if(se == other || se instanceof Whatever)
+			return se;
+		if(se instanceof TOP || other instanceof TOP) {
+			if(se instanceof TOP && other instanceof TOP)
+				return se;
+			throw new RuntimeException("cannot merge a two-words element with a one-word element (" + se + ", " + other + ")");
+		}
+		if(se.getClass() == other.getClass()) {
+			if(se instanceof ValueFromLocalVariable && ((ValueFromLocalVariable) se).localVariable == ((ValueFromLocalVariable) other).localVariable)
+				return se;
+			if(se instanceof Constant) {
+				Object value = ((Constant<?>) se).getValue();
+				if(value == null ? ((Constant<?>) other).getValue() == null : value.equals(((Constant<?>) other).getValue()))
+					return se;
+			}
+			if(se instanceof VoidElement)
+				return se;
+		}
+		if(se instanceof Array && other instanceof Array) {
+			String signature = ((Array) se).signature;
+			if(signature.equals(((Array) other).signature))
+				return se.getClass() == Array.class ? se : new Array(signature);
+		}
+		return Whatever.INSTANCE;
+	}
+	
+	private int toArrayIndex(int fromTop) {
+		if(fromTop < 0 || fromTop >= size)
+			throw new IndexOutOfBoundsException("Index: " + fromTop + ", Size: " + size);
+		return size - 1 - fromTop;
+	}
+	
+	private StackElement removeTop() {
+		if(size == 0)
+			throw new NoSuchElementException();
+		makeWritable(0);
+		StackElement se = elements[--size];
+		elements[size] = null;
+		return se;
+	}
+	
+	/**
+	 * Ensures that the elements array is owned by this stack and can hold the given number of additional words.
+	 */
+	private void makeWritable(int extra) {
+		if(shared || size + extra > elements.length) {
+			int capacity = elements.length;
+			while(size + extra > capacity)
+				capacity = capacity * 2;
+			elements = Arrays.copyOf(elements, capacity);
+			shared = false;
+		}
+	}
+	
+	void set(int fromTop, StackElement se) {
+		int at = toArrayIndex(fromTop);
+		makeWritable(0);
+		elements[at] = se;
+	}
+	
+	StackElement remove(int fromTop) {
+		int at = toArrayIndex(fromTop);
+		makeWritable(0);
+		StackElement se = elements[at];
+		System.arraycopy(elements, at + 1, elements, at, size - at - 1);
+		elements[--size] = null;
+		return se;
+	}
+	
+	/**
+	 * List view of a Stack, kept for compatibility. The first element of the list is the top of the stack.
+	 * Every operation of the list, inherited ones included, goes through the owner stack.
+	 */
+	private static class StackListView extends AbstractList<StackElement> {
+		private final Stack owner;
+		
+		StackListView(Stack owner) {
+			this.owner = owner;
+		}
+		
+		@Override
+		public int size() {
+			return owner.size;
+		}
+		@Override
+		public StackElement get(int index) {
+			return owner.getFromTop(index);
+		}
+		@Override
+		public StackElement set(int index, StackElement element) {
+			StackElement previous = owner.getFromTop(index);
+			owner.set(index, element);
+			return previous;
+		}
+		@Override
+		public void add(int index, StackElement element) {
+			owner.insertFromTop(index, element);
+		}
+		@Override
+		public StackElement remove(int index) {
+			return owner.remove(index);
+		}
+		@Override
+		public void clear() {
+			owner.discard(owner.size);
 		}
 	}
 }
\ No newline at end of file
@@ -19,7 +19,6 @@
  */
 package bytecodeparser.analysis.stack;
 
-import java.util.Arrays;
 import java.util.Iterator;
 
 import org.apache.log4j.Logger;
@@ -28,22 +27,20 @@ import javassist.CtBehavior;
 import javassist.bytecode.BadBytecode;
 import javassist.bytecode.CodeAttribute;
 import javassist.bytecode.CodeIterator;
-import bytecodeparser.CodeParser;
 import bytecodeparser.Context;
-import bytecodeparser.OpHandler;
+import bytecodeparser.analysis.ControlFlowGraph;
 import bytecodeparser.analysis.Opcodes;
 import bytecodeparser.analysis.decoders.DecodedBranchOp;
 import bytecodeparser.analysis.decoders.DecodedMethodInvocationOp;
 import bytecodeparser.analysis.decoders.DecodedOp;
 import bytecodeparser.analysis.decoders.DecodedSwitchOpcode;
-import bytecodeparser.analysis.opcodes.BranchOpCode;
-import bytecodeparser.analysis.opcodes.ExitOpcode;
 import bytecodeparser.analysis.opcodes.Op;
-import bytecodeparser.analysis.opcodes.SwitchOpcode;
 import bytecodeparser.analysis.stack.Stack.StackElementLength;
 
 /**
  * A class to analyze a behavior.
+ * The analysis is an iterative data-flow over the basic blocks of the behavior: the stacks flowing into a block
+ * from its predecessors are merged, and the block is simulated again until its entry stack does not change anymore.
  * Any statement can be inserted after or before the frames produced by the analysis using the FrameIterator.
  * @author Stephane Godbillon
  *
@@ -51,114 +48,430 @@ import bytecodeparser.analysis.stack.Stack.StackElementLength;
 public class StackAnalyzer {
 	private static final Logger LOGGER = Logger.getLogger(StackAnalyzer.class);
 	
+	/**
+	 * Default maximum number of block simulations performed by an analysis.
+	 */
+	public static final int DEFAULT_MAX_ITERATIONS = 1000000;
+	/**
+	 * Number of frames in the trace logged when the analysis fails.
+	 */
+	static final int TRACE_SIZE = 32;
+	
 	/**
 	 * Context of this analysis.
 	 */
 	public final Context context;
 	final Stack stack;
-	final Frame[] frames;
+	/**
+	 * The frames, indexed by the offsets of their instructions at the time of the last analysis.
+	 */
+	Frame[] frames;
+	final int maxStack;
+	/**
+	 * The basic blocks of the behavior.
+	 */
+	ControlFlowGraph controlFlowGraph;
+	/**
+	 * The merged stacks at the start of each basic block, indexed by block.
+	 */
+	Stack[] entryStacks;
+	int maxIterations = DEFAULT_MAX_ITERATIONS;
+	boolean lazyStacks = false;
+	AnalysisListener listener;
+	/**
+	 * States if the frames are traced, computed once per analysis.
+	 */
+	boolean trace;
+	/**
+	 * The worklist of the analysis, reused when it is big enough (the ClassAnalyzer hands it from an analyzer to the next one).
+	 */
+	Worklist worklist;
+	/**
+	 * The frames returned by analyze(), updated in place by reanalyze().
+	 */
+	Frames result;
 	
 	/**
 	 * Constructs an analyzer for the given behavior.
 	 * @param behavior
 	 */
 	public StackAnalyzer(CtBehavior behavior) {
-		this.context = new Context(behavior);
-		this.stack = new Stack();
-		this.frames = new Frame[context.behavior.getMethodInfo().getCodeAttribute().getCodeLength()];
+		this(new Context(behavior));
+	}
+	
+	StackAnalyzer(Context context) {
+		this.context = context;
+		CodeAttribute codeAttribute = context.behavior.getMethodInfo().getCodeAttribute();
+		this.maxStack = codeAttribute.getMaxStack();
+		this.stack = new Stack(maxStack);
+		this.frames = new Frame[codeAttribute.getCodeLength()];
+	}
+	
+	/**
+	 * Sets the maximum number of block simulations the analysis may perform before giving up.
+	 * @param maxIterations
+	 * @return this analyzer for chaining.
+	 */
+	public StackAnalyzer setMaxIterations(int maxIterations) {
+		this.maxIterations = maxIterations;
+		return this;
+	}
+	
+	/**
+	 * Sets the lazy stacks mode. In this mode, the analysis only keeps the stacks at the start of each basic block;
+	 * the stacks of the frames are rebuilt, block by block, when they are first requested with Frame.getStackBefore() or Frame.getStackAfter().
+	 * @param lazyStacks
+	 * @return this analyzer for chaining.
+	 */
+	public StackAnalyzer setLazyStacks(boolean lazyStacks) {
+		this.lazyStacks = lazyStacks;
+		return this;
+	}
+	
+	/**
+	 * Sets the descriptor-only mode, in which the referenced types are not resolved in the class pool during the analysis.
+	 * @see Context#setDescriptorOnly(boolean)
+	 * @return this analyzer for chaining.
+	 */
+	public StackAnalyzer setDescriptorOnly(boolean descriptorOnly) {
+		context.setDescriptorOnly(descriptorOnly);
+		return this;
+	}
+	
+	/**
+	 * Sets the listener notified before and after the simulation of each frame.
+	 * @param listener the listener, or null to remove it.
+	 * @return this analyzer for chaining.
+	 */
+	public StackAnalyzer setListener(AnalysisListener listener) {
+		this.listener = listener;
+		return this;
 	}
 	
 	/**
 	 * Analyzes the behavior and returns the frames of its code.
 	 * @return the frames of the bytecode.
 	 * @throws BadBytecode thrown by javassist if the bytecode of this method is wrong.
+	 * @throws RuntimeException if the analysis does not converge within the maximum number of iterations.
 	 */
 	public Frames analyze() throws BadBytecode {
 		if(frames[0] == null) {
 			long start = System.currentTimeMillis();
 			if(LOGGER.isDebugEnabled())
 				LOGGER.debug("Start analyzis of " + context.behavior.getLongName());
+			trace = LOGGER.isTraceEnabled();
 			init();
-			analyze(0, new Stack());
-			parseCatchBlocks();
+			run();
 			if(LOGGER.isDebugEnabled())
 				LOGGER.debug("Analyzis ended, took " + (System.currentTimeMillis() - start) + " ms");
 		}
-		return new Frames(context.behavior, frames);
+		if(result == null)
+			result = new Frames(context, frames);
+		return result;
 	}
 	
-	void init() throws BadBytecode {
-		new CodeParser(context.behavior).parse(new OpHandler() {
-			@Override
-			public void handle(Op op, int index) {
-				Frame frame = frames[index] = new Frame();
+	/**
+	 * Analyzes the behavior again after some bytecode has been inserted around the frames returned by analyze().
+	 * The frames of the inserted instructions are spliced into a backed array indexed by the current offsets,
+	 * and only the blocks containing inserted code, and the blocks reachable from them, are simulated again;
+	 * the other frames keep their stacks. The ops of the frames which have moved, and the branches, are decoded again,
+	 * as they are bound to their offset. The stacks are always computed eagerly, even in lazy stacks mode.
+	 * The FrameIterators and FrameEditors created before must not be used anymore.
+	 * @return the frames returned by analyze(), updated.
+	 * @throws BadBytecode thrown by javassist if the bytecode of this method is wrong.
+	 * @throws RuntimeException if the analysis does not converge within the maximum number of iterations.
+	 */
+	public Frames reanalyze() throws BadBytecode {
+		if(result == null)
+			return analyze();
+		for(Frame frame : frames)
+			if(frame != null && frame.analyzer != null)
+				frame.getStackBefore(); // rebuilt with the previous control flow graph
+		CodeAttribute codeAttribute = context.behavior.getMethodInfo().getCodeAttribute();
+		Frame[] spliced = new Frame[codeAttribute.getCodeLength()];
+		for(Frame frame : frames)
+			if(frame != null)
+				spliced[frame.index] = frame;
+		frames = spliced;
+		context.iterator.reload();
+		trace = LOGGER.isTraceEnabled();
+		controlFlowGraph = context.getControlFlowGraph();
+		int nbBlocks = controlFlowGraph.getNbBlocks();
+		entryStacks = new Stack[nbBlocks];
+		boolean[] dirty = new boolean[nbBlocks];
+		CodeIterator iterator = codeAttribute.iterator();
+		for(int ordinal = 0; ordinal < controlFlowGraph.getNbInstructions(); ordinal++) {
+			int index = controlFlowGraph.getInstruction(ordinal);
+			Frame frame = frames[index];
+			if(frame == null) {
+				frame = frames[index] = new Frame();
 				frame.index = index;
+				dirty[controlFlowGraph.getBlockAt(index)] = true;
+			} else if(frame.decodedOp != null && (frame.decodedOp.index != index || frame.decodedOp instanceof DecodedBranchOp || frame.decodedOp instanceof DecodedSwitchOpcode)) {
+				// a decoded op reads its operands at its own offset, and the relative targets may have changed even if it did not move
+				frame.decodedOp = Opcodes.get(iterator.byteAt(index)).init(context, index).decode(context, index);
 			}
-		});
+		}
+		boolean[] affected = affectedBlocks(dirty);
+		for(int block = 0; block < nbBlocks; block++) {
+			if(affected[block])
+				clearStacks(block);
+			else entryStacks[block] = frames[controlFlowGraph.getBlockStart(block)].stackBefore;
+		}
+		int maxStack = codeAttribute.getMaxStack();
+		Worklist worklist = worklist(nbBlocks);
+		if(affected[0])
+			propagate(worklist, 0, new Stack(maxStack));
+		for(int block = 0; block < nbBlocks; block++) {
+			if(affected[block] && controlFlowGraph.isHandler(block))
+				propagate(worklist, block, new Stack(maxStack).push(Whatever.INSTANCE));
+			// the other blocks are not simulated, but their exit stacks flow into the affected ones
+			if(!affected[block] && entryStacks[block] != null) {
+				Stack exitStack = frames[controlFlowGraph.getBlockEnd(block)].stackAfter;
+				for(int i = 0; i < controlFlowGraph.getNbSuccessors(block); i++) {
+					int successor = controlFlowGraph.getSuccessor(block, i);
+					if(affected[successor])
+						propagate(worklist, successor, exitStack);
+				}
+			}
+		}
+		boolean lazyStacks = this.lazyStacks;
+		this.lazyStacks = false;
+		try {
+			drain(worklist, iterator);
+		} finally {
+			this.lazyStacks = lazyStacks;
+		}
+		result.splice(frames);
+		return result;
+	}
+	
+	/**
+	 * Gets the blocks which stacks may change: the given dirty blocks and all the blocks reachable from them.
+	 */
+	private boolean[] affectedBlocks(boolean[] dirty) {
+		boolean[] affected = dirty.clone();
+		int[] pending = new int[dirty.length];
+		int nbPending = 0;
+		for(int block = 0; block < dirty.length; block++)
+			if(dirty[block])
+				pending[nbPending++] = block;
+		while(nbPending > 0) {
+			int block = pending[--nbPending];
+			for(int i = 0; i < controlFlowGraph.getNbSuccessors(block); i++) {
+				int successor = controlFlowGraph.getSuccessor(block, i);
+				if(!affected[successor]) {
+					affected[successor] = true;
+					pending[nbPending++] = successor;
+				}
+			}
+		}
+		return affected;
+	}
+	
+	/**
+	 * Forgets the stacks of the frames of the given block, so that they are rebuilt from its predecessors only.
+	 */
+	private void clearStacks(int block) {
+		int last = controlFlowGraph.getBlockLastOrdinal(block);
+		for(int ordinal = controlFlowGraph.getBlockFirstOrdinal(block); ordinal <= last; ordinal++) {
+			Frame frame = frames[controlFlowGraph.getInstruction(ordinal)];
+			frame.stackBefore = null;
+			frame.stackAfter = null;
+			frame.isAccessible = false;
+		}
+	}
+	
+	void init() throws BadBytecode {
+		controlFlowGraph = context.getControlFlowGraph();
+		entryStacks = new Stack[controlFlowGraph.getNbBlocks()];
+		for(int ordinal = 0; ordinal < controlFlowGraph.getNbInstructions(); ordinal++) {
+			int index = controlFlowGraph.getInstruction(ordinal);
+			Frame frame = frames[index] = new Frame();
+			frame.index = index;
+			if(lazyStacks) {
+				frame.analyzer = this;
+				frame.block = controlFlowGraph.getBlockAt(index);
+			}
+		}
+	}
+	
+	void run() throws BadBytecode {
+		Worklist worklist = worklist(entryStacks.length);
+		propagate(worklist, 0, new Stack(maxStack));
+		for(int block = 0; block < entryStacks.length; block++)
+			if(controlFlowGraph.isHandler(block))
+				propagate(worklist, block, new Stack(maxStack).push(Whatever.INSTANCE));
+		drain(worklist, context.behavior.getMethodInfo().getCodeAttribute().iterator());
+	}
+	
+	/**
+	 * Gets the worklist of this analyzer, cleared, allocating a new one if it is too small.
+	 */
+	private Worklist worklist(int nbBlocks) {
+		if(worklist == null || worklist.capacity() < nbBlocks)
+			worklist = new Worklist(nbBlocks);
+		return worklist.clear();
+	}
+	
+	/**
+	 * Simulates the queued blocks until the worklist is empty.
+	 */
+	private void drain(Worklist worklist, CodeIterator iterator) throws BadBytecode {
+		int iterations = 0;
+		while(!worklist.isEmpty()) {
+			if(++iterations > maxIterations)
+				throw new RuntimeException("analysis of " + context.behavior.getLongName() + " did not converge after " + maxIterations + " block simulations");
+			int block = worklist.poll();
+			analyze(block, entryStacks[block], iterator, worklist);
+		}
 	}
 	
-	void parseCatchBlocks() throws BadBytecode {
-		for(int index : context.exceptionHandlers) {
-			analyze(index, new Stack().push(new Whatever()));
+	/**
+	 * Merges the given stack into the entry stack of the given block,
+	 * and schedules this block for simulation if its entry stack has changed.
+	 */
+	void propagate(Worklist worklist, int block, Stack stack) {
+		Stack current = entryStacks[block];
+		Stack merged = current == null ? stack : Stack.merge(current, stack);
+		if(merged != current) {
+			entryStacks[block] = merged;
+			worklist.add(block);
 		}
 	}
 	
-	void analyze(int from, Stack stack) throws BadBytecode {
-		StringBuffer trace = new StringBuffer();
+	void analyze(int block, Stack stack, CodeIterator iterator, Worklist worklist) throws BadBytecode {
+		int ordinal = controlFlowGraph.getBlockFirstOrdinal(block);
 		try {
-			if(frames[from].isAccessible) // already parsed
-				return;
-			CodeIterator iterator = context.behavior.getMethodInfo().getCodeAttribute().iterator();
-			iterator.move(from);
 			Stack currentStack = stack.copy();
-			while(iterator.hasNext()) {
-				int index = iterator.next();
-				Op op = Opcodes.OPCODES.get(iterator.byteAt(index)).init(context, index);
-				trace.append("\n").append(index).append(":").append(op.getName()).append(" --> ");
+			int last = controlFlowGraph.getBlockLastOrdinal(block);
+			for(; ordinal <= last; ordinal++) {
+				int index = controlFlowGraph.getInstruction(ordinal);
 				Frame frame = frames[index];
 				frame.isAccessible = true;
-				frame.stackBefore = currentStack.copy();
-				frame.decodedOp = op.decode(context, index);
-				if(frame.decodedOp instanceof DecodedBranchOp)
-					trace.append(" [jump to ").append(((DecodedBranchOp)frame.decodedOp).getJump()).append("] ");
-				if(frame.decodedOp instanceof DecodedMethodInvocationOp)
-					trace.append(" [params = ").append(StackElementLength.add(((DecodedMethodInvocationOp)frame.decodedOp).getPops())).append(" -> ").append(Arrays.toString(((DecodedMethodInvocationOp)frame.decodedOp).getParameterTypes())).append("] ");
+				if(frame.decodedOp == null)
+					frame.decodedOp = Opcodes.get(iterator.byteAt(index)).init(context, index).decode(context, index);
+				if(listener != null)
+					listener.beforeFrame(frame, currentStack);
+				if(!lazyStacks)
+					frame.stackBefore = currentStack.copy();
 				frame.decodedOp.simulate(currentStack);
-				frame.stackAfter = currentStack.copy();
-				trace.append(frame.stackAfter);
-				
-				if( !(op instanceof ExitOpcode || (op instanceof BranchOpCode && !((BranchOpCode)op).isConditional()) || op instanceof SwitchOpcode) )
-					trace.append(". Next is ").append(iterator.lookAhead());
-				
-				if(LOGGER.isTraceEnabled())
-					LOGGER.trace(trace);
-				
-				if(op instanceof ExitOpcode)
-					return;
-				
-				if(op instanceof BranchOpCode) {
-					BranchOpCode branchOpCode = op.as(BranchOpCode.class);
-					int jump = branchOpCode.decode(context, index).getJump();
-					analyze(jump, frame.stackAfter);
-					if(!branchOpCode.isConditional())
-						return;
-				}
-				
-				if(op instanceof SwitchOpcode) {
-					SwitchOpcode switchOpcode = op.as(SwitchOpcode.class);
-					DecodedSwitchOpcode decodedSwitchOpcode = switchOpcode.decode(context, index);
-					for(int offset : decodedSwitchOpcode.offsets)
-						analyze(offset, frame.stackAfter);
-					analyze(decodedSwitchOpcode.defaultOffset, frame.stackAfter);
-					return;
-				}
+				if(!lazyStacks)
+					frame.stackAfter = currentStack.copy();
+				if(listener != null)
+					listener.afterFrame(frame, currentStack);
+				if(trace)
+					LOGGER.trace(appendTrace(new StringBuffer(), frame, currentStack, ordinal < last ? controlFlowGraph.getInstruction(ordinal + 1) : -1));
 			}
+			for(int i = 0; i < controlFlowGraph.getNbSuccessors(block); i++)
+				propagate(worklist, controlFlowGraph.getSuccessor(block, i), currentStack);
 		} catch (Exception e) {
-			LOGGER.error("BCLIBS ERROR !! " + trace.toString(), e);
+			LOGGER.error("BCLIBS ERROR !! " + rebuildTrace(block, ordinal, iterator), e);
 			throw new RuntimeException(e);
 		}
 	}
 	
+	/**
+	 * Appends the trace line of the given frame.
+	 */
+	private static StringBuffer appendTrace(StringBuffer sb, Frame frame, Stack stackAfter, int next) {
+		sb.append("\n").append(frame.index).append(":").append(frame.decodedOp.op.getName()).append(" --> ");
+		if(frame.decodedOp instanceof DecodedBranchOp)
+			sb.append(" [jump to ").append(((DecodedBranchOp)frame.decodedOp).getJump()).append("] ");
+		if(frame.decodedOp instanceof DecodedMethodInvocationOp)
+			sb.append(" [params = ").append(StackElementLength.add(((DecodedMethodInvocationOp)frame.decodedOp).getPops())).append(" -> ").append(((DecodedMethodInvocationOp)frame.decodedOp).getDescriptor()).append("] ");
+		sb.append(stackAfter);
+		if(next != -1)
+			sb.append(". Next is ").append(next);
+		return sb;
+	}
+	
+	/**
+	 * Rebuilds the trace of the last frames simulated before the failing one, by simulating the block again.
+	 * Only the last TRACE_SIZE frames are kept.
+	 */
+	private String rebuildTrace(int block, int failingOrdinal, CodeIterator iterator) {
+		String[] lines = new String[TRACE_SIZE];
+		int nbLines = 0;
+		try {
+			Stack currentStack = entryStacks[block].copy();
+			for(int ordinal = controlFlowGraph.getBlockFirstOrdinal(block); ordinal < failingOrdinal; ordinal++) {
+				Frame frame = frames[controlFlowGraph.getInstruction(ordinal)];
+				frame.decodedOp.simulate(currentStack);
+				lines[nbLines++ % TRACE_SIZE] = appendTrace(new StringBuffer(), frame, currentStack, controlFlowGraph.getInstruction(ordinal + 1)).toString();
+			}
+			int index = controlFlowGraph.getInstruction(failingOrdinal);
+			lines[nbLines++ % TRACE_SIZE] = "\n" + index + ":" + Opcodes.findOpName(iterator.byteAt(index)) + " FAILED, before --> " + currentStack;
+		} catch (Exception e) {
+			lines[nbLines++ % TRACE_SIZE] = "\n(trace unavailable: " + e + ")";
+		}
+		StringBuffer sb = new StringBuffer();
+		for(int i = Math.max(0, nbLines - TRACE_SIZE); i < nbLines; i++)
+			sb.append(lines[i % TRACE_SIZE]);
+		return sb.toString();
+	}
+	
+	/**
+	 * Rebuilds the stacks of the frames of the given block from its entry stack.
+	 */
+	void rebuildStacks(int block) {
+		Stack currentStack = entryStacks[block] != null ? entryStacks[block].copy() : null;
+		int last = controlFlowGraph.getBlockLastOrdinal(block);
+		for(int ordinal = controlFlowGraph.getBlockFirstOrdinal(block); ordinal <= last; ordinal++) {
+			Frame frame = frames[controlFlowGraph.getInstruction(ordinal)];
+			frame.analyzer = null;
+			if(currentStack != null) {
+				frame.stackBefore = currentStack.copy();
+				frame.decodedOp.simulate(currentStack);
+				frame.stackAfter = currentStack.copy();
+			}
+		}
+	}
+	
+	/**
+	 * A FIFO queue of blocks, each block being queued at most once at a time.
+	 */
+	static class Worklist {
+		private final int[] queue;
+		private final boolean[] queued;
+		private int head, size;
+		
+		Worklist(int capacity) {
+			this.queue = new int[capacity];
+			this.queued = new boolean[capacity];
+		}
+		
+		boolean isEmpty() {
+			return size == 0;
+		}
+		
+		int capacity() {
+			return queue.length;
+		}
+		
+		Worklist clear() {
+			while(size > 0)
+				poll();
+			head = 0;
+			return this;
+		}
+		
+		void add(int block) {
+			if(!queued[block]) {
+				queued[block] = true;
+				queue[(head + size++) % queue.length] = block;
+			}
+		}
+		
+		int poll() {
+			int block = queue[head];
+			head = (head + 1) % queue.length;
+			size--;
+			queued[block] = false;
+			return block;
+		}
+	}
+	
 	/**
 	 * A bytecode frame. A frame instance holds a reference of the stack (before and after it).
 	 * @author Stephane Godbillon
@@ -167,10 +480,12 @@ public class StackAnalyzer {
 	public static class Frame {
 		/**
 		 * The state of the stack before the frame is run.
+		 * In lazy stacks mode, this field is null until the stacks of this frame are rebuilt: use getStackBefore() instead.
 		 */
 		public Stack stackBefore;
 		/**
 		 * The state of the stack after the frame is run.
+		 * In lazy stacks mode, this field is null until the stacks of this frame are rebuilt: use getStackAfter() instead.
 		 */
 		public Stack stackAfter;
 		/**
@@ -186,13 +501,36 @@ public class StackAnalyzer {
 		 * Generally, a frame which isAccessible field is false denotes a wrong bytecode.
 		 */
 		public boolean isAccessible = false;
+		/**
+		 * The analyzer which rebuilds the stacks of this frame in lazy stacks mode, null once rebuilt.
+		 */
+		StackAnalyzer analyzer;
+		int block;
+		
+		/**
+		 * Gets the state of the stack before the frame is run, rebuilding it if needed.
+		 */
+		public Stack getStackBefore() {
+			if(analyzer != null)
+				analyzer.rebuildStacks(block);
+			return stackBefore;
+		}
+		
+		/**
+		 * Gets the state of the stack after the frame is run, rebuilding it if needed.
+		 */
+		public Stack getStackAfter() {
+			if(analyzer != null)
+				analyzer.rebuildStacks(block);
+			return stackAfter;
+		}
 		
 		/**
 		 * A String representation of this frame.
 		 */
 		@Override
 		public String toString() {
-			return "Frame " + index + " (" + decodedOp.op.getName() + "):" + stackBefore + " -> " + stackAfter + " " + (isAccessible ? "" : " NOT ACCESSIBLE");
+			return "Frame " + index + " (" + decodedOp.op.getName() + "):" + getStackBefore() + " -> " + getStackAfter() + " " + (isAccessible ? "" : " NOT ACCESSIBLE");
 		}
 	}
 	
@@ -203,19 +541,83 @@ public class StackAnalyzer {
 	 */
 	public static class Frames implements Iterable<Frame> {
 		/**
-		 * The backed frames.
+		 * The backed frames. This array is replaced when the frames are spliced by StackAnalyzer.reanalyze().
 		 */
-		public final Frame[] frames;
+		public Frame[] frames;
 		/**
 		 * The behavior containing these frames.
 		 */
 		public final CtBehavior behavior;
+		/**
+		 * The context of the analysis that produced these frames, notified of the insertions. Can be null.
+		 */
+		final Context context;
+		/**
+		 * The positions of the frames in the backed array, in bytecode order.
+		 * The backed array is indexed by the offsets of the instructions at the time of the last analysis, so the insertions do not change them.
+		 */
+		int[] positions;
 
 		public Frames(CtBehavior behavior, Frame[] frames) {
 			this.frames = frames;
 			this.behavior = behavior;
+			this.context = null;
+			this.positions = positionsOf(frames);
+		}
+		
+		public Frames(Context context, Frame[] frames) {
+			this.frames = frames;
+			this.behavior = context.behavior;
+			this.context = context;
+			this.positions = positionsOf(frames);
+		}
+		
+		/**
+		 * Replaces the backed frames by the given ones.
+		 */
+		void splice(Frame[] frames) {
+			this.frames = frames;
+			this.positions = positionsOf(frames);
+		}
+		
+		private static int[] positionsOf(Frame[] frames) {
+			int n = 0;
+			for(Frame frame : frames)
+				if(frame != null)
+					n++;
+			int[] positions = new int[n];
+			n = 0;
+			for(int i = 0; i < frames.length; i++)
+				if(frames[i] != null)
+					positions[n++] = i;
+			return positions;
+		}
+		
+		/**
+		 * @return the number of frames.
+		 */
+		public int size() {
+			return positions.length;
+		}
+		
+		/**
+		 * Gets a frame by its ordinal, that is its rank in the bytecode order.
+		 * @param ordinal
+		 * @return the frame.
+		 * @throws IndexOutOfBoundsException if there is no such frame.
+		 */
+		public Frame get(int ordinal) {
+			return frames[positions[ordinal]];
 		}
 
+		/**
+		 * Gets an editor to insert some bytecode around many frames at once.
+		 * @see FrameEditor
+		 */
+		public FrameEditor editor() {
+			return new FrameEditor(this);
+		}
+		
 		@Override
 		public FrameIterator iterator() {
 			return new FrameIterator();
@@ -228,9 +630,12 @@ public class StackAnalyzer {
 		 *
 		 */
 		public class FrameIterator implements Iterator<Frame> {
-			private int i = -1;
+			/**
+			 * The ordinal of the current frame.
+			 */
+			private int ordinal = -1;
 			private FrameCodeIterator iterator = new FrameCodeIterator(behavior
-					.getMethodInfo().getCodeAttribute(), frames);
+					.getMethodInfo().getCodeAttribute(), frames, context);
 
 			/**
 			 * Should never be used, this operation is not supported.
@@ -247,11 +652,8 @@ public class StackAnalyzer {
 			 */
 			@Override
 			public Frame next() {
-				int nextIndex = nextIndex();
-				if (nextIndex > -1) {
-					i = nextIndex;
-					return frames[nextIndex];
-				}
+				if (ordinal + 1 < positions.length)
+					return frames[positions[++ordinal]];
 				throw new IllegalStateException();
 			}
 
@@ -261,7 +663,7 @@ public class StackAnalyzer {
 			 */
 			@Override
 			public boolean hasNext() {
-				return nextIndex() > -1;
+				return ordinal + 1 < positions.length;
 			}
 
 			/**
@@ -269,7 +671,7 @@ public class StackAnalyzer {
 			 * @return true if at the start of the backed frames array, false if not.
 			 */
 			public boolean isFirst() {
-				return i == 0;
+				return ordinal == 0 && positions[0] == 0;
 			}
 
 			/**
@@ -285,16 +687,16 @@ public class StackAnalyzer {
 			 * @return the next frame.
 			 */
 			public Frame lookAhead() {
-				if (nextIndex() != -1)
-					return frames[nextIndex()];
+				if (ordinal + 1 < positions.length)
+					return frames[positions[ordinal + 1]];
 				return null;
 			}
-
-			private int nextIndex() {
-				for (int j = i + 1; j < frames.length; j++)
-					if (frames[j] != null)
-						return j;
-				return -1;
+			
+			/**
+			 * Gets the ordinal of the current frame, -1 before the first call to next().
+			 */
+			public int getOrdinal() {
+				return ordinal;
 			}
 
 			/**
@@ -305,10 +707,11 @@ public class StackAnalyzer {
 			 */
 			public void insert(byte[] code, boolean after) throws BadBytecode {
 				int index = 0;
-				if (!after && i != -1)
-					index = frames[i].index;
-				if (after && lookAhead() != null)
-					index = lookAhead().index;
+				if (!after && ordinal != -1)
+					index = frames[positions[ordinal]].index;
+				Frame next = after ? lookAhead() : null;
+				if (next != null)
+					index = next.index;
 				iterator.move(index);
 				iterator.insert(code);
 			}
@@ -316,10 +719,12 @@ public class StackAnalyzer {
 
 		static class FrameCodeIterator extends CodeIterator {
 			final Frame[] frames;
+			final Context context;
 
-			public FrameCodeIterator(CodeAttribute codeAttribute, Frame[] frames) {
+			public FrameCodeIterator(CodeAttribute codeAttribute, Frame[] frames, Context context) {
 				super(codeAttribute);
 				this.frames = frames;
+				this.context = context;
 			}
 
 			@Override
@@ -329,6 +734,8 @@ public class StackAnalyzer {
 					if (frame != null && frame.index > pos)
 						frame.index += length;
 				}
+				if (context != null)
+					context.bytecodeInserted(pos, length);
 			}
 		}
 	}
@@ -0,0 +1,412 @@
+/*
+ *  Copyright (C) 2011 Stephane Godbillon
+ *  
+ *  This file is part of BytecodeParser. See the README file in the root
+ *  directory of this project.
+ *
+ *  BytecodeParser is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+
+ *  BytecodeParser is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with BytecodeParser.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bytecodeparser.analysis.stack;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import org.apache.log4j.Logger;
+
+import javassist.CtConstructor;
+import javassist.Modifier;
+import javassist.bytecode.BadBytecode;
+import javassist.bytecode.ByteArray;
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.CodeIterator;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.ExceptionTable;
+import javassist.bytecode.MethodInfo;
+import javassist.bytecode.Opcode;
+import javassist.bytecode.StackMapTable;
+import bytecodeparser.ConstPoolCache;
+import bytecodeparser.analysis.LocalVariable;
+import bytecodeparser.analysis.decoders.DecodedLocalVariableOp;
+import bytecodeparser.analysis.decoders.DecodedMethodInvocationOp;
+import bytecodeparser.analysis.decoders.DecodedWideOp;
+import bytecodeparser.analysis.opcodes.LocalVariableOpcode;
+import bytecodeparser.analysis.stack.Constant.DoubleConstant;
+import bytecodeparser.analysis.stack.Constant.FloatConstant;
+import bytecodeparser.analysis.stack.Constant.IntegerConstant;
+import bytecodeparser.analysis.stack.Constant.LongConstant;
+import bytecodeparser.analysis.stack.Constant.StringConstant;
+import bytecodeparser.analysis.stack.Stack.StackElementLength;
+import bytecodeparser.analysis.stack.StackAnalyzer.Frame;
+import bytecodeparser.analysis.stack.StackAnalyzer.Frames;
+
+/**
+ * Regenerates the StackMapTable, the max_stack and the max_locals of a behavior from its analyzed frames,
+ * so that an edited behavior does not need another type analysis through javassist.
+ * 
+ * The stack of each frame comes from the analysis, and the locals from the parameters and the LocalVariableTable.
+ * When these types are not enough to describe a frame (an element of unknown type on the stack, a local variable
+ * missing from the LocalVariableTable, an uninitialized object, a subroutine or some dead code), the generator falls back
+ * to MethodInfo.rebuildStackMap(), which needs the referenced classes to be in the class pool.
+ * 
+ * The frames must describe the current code: after some insertions, call StackAnalyzer.reanalyze() first.
+ * @author Stephane Godbillon
+ *
+ */
+public class StackMapGenerator {
+	private static final Logger LOGGER = Logger.getLogger(StackMapGenerator.class);
+	
+	private final Frames frames;
+	private final MethodInfo methodInfo;
+	private final CodeAttribute codeAttribute;
+	private final ConstPool constPool;
+	private LocalVariable[] localVariables;
+	
+	public StackMapGenerator(Frames frames) {
+		this.frames = frames;
+		this.methodInfo = frames.behavior.getMethodInfo();
+		this.codeAttribute = methodInfo.getCodeAttribute();
+		this.constPool = methodInfo.getConstPool();
+	}
+	
+	/**
+	 * Sets the max_stack and max_locals of the behavior, and replaces its StackMapTable if its class needs one.
+	 * @return true if the StackMapTable has been generated from the frames, false if javassist has rebuilt it.
+	 * @throws BadBytecode if javassist fails to rebuild the StackMapTable.
+	 * @throws IllegalStateException if the frames do not match the code of the behavior.
+	 */
+	public boolean generate() throws BadBytecode {
+		checkFrames();
+		codeAttribute.setMaxStack(maxStack());
+		codeAttribute.setMaxLocals(maxLocals());
+		if(frames.behavior.getDeclaringClass().getClassFile2().getMajorVersion() < ClassFile.JAVA_6)
+			return true;
+		StackMapTable stackMapTable = stackMapTable();
+		if(stackMapTable == null) {
+			methodInfo.rebuildStackMap(frames.behavior.getDeclaringClass().getClassPool());
+			return false;
+		}
+		codeAttribute.setAttribute(stackMapTable);
+		return true;
+	}
+	
+	private void checkFrames() throws BadBytecode {
+		CodeIterator iterator = codeAttribute.iterator();
+		int ordinal = 0;
+		while(iterator.hasNext()) {
+			int index = iterator.next();
+			Frame frame = ordinal < frames.size() ? frames.get(ordinal++) : null;
+			if(frame == null || frame.index != index || (frame.decodedOp != null && frame.decodedOp.index != index))
+				throw new IllegalStateException("the frames of " + frames.behavior.getLongName() + " do not match its code, reanalyze it");
+		}
+		if(ordinal != frames.size())
+			throw new IllegalStateException("the frames of " + frames.behavior.getLongName() + " do not match its code, reanalyze it");
+	}
+	
+	/**
+	 * @return the maximum number of words in the stacks of the frames.
+	 */
+	int maxStack() {
+		int maxStack = 0;
+		for(Frame frame : frames) {
+			if(frame.isAccessible) {
+				maxStack = Math.max(maxStack, frame.getStackBefore().size());
+				maxStack = Math.max(maxStack, frame.getStackAfter().size());
+			}
+		}
+		return maxStack;
+	}
+	
+	/**
+	 * @return the number of slots used by the parameters, the local variable ops and the LocalVariableTable.
+	 */
+	int maxLocals() {
+		int maxLocals = parameterTypes().length;
+		for(Frame frame : frames) {
+			DecodedLocalVariableOp op = localVariableOp(frame);
+			if(op != null)
+				maxLocals = Math.max(maxLocals, slotOf(op) + (op.doubleLength ? 2 : 1));
+		}
+		for(LocalVariable localVariable : localVariables())
+			maxLocals = Math.max(maxLocals, localVariable.getSlot() + words(localVariable.type.signature));
+		return maxLocals;
+	}
+	
+	/**
+	 * @return the local variable op of the given frame, unwrapped if it is wide, or null.
+	 */
+	private static DecodedLocalVariableOp localVariableOp(Frame frame) {
+		if(frame.decodedOp instanceof DecodedWideOp)
+			return ((DecodedWideOp) frame.decodedOp).wrappedDecodedLocalVariableOp;
+		if(frame.decodedOp instanceof DecodedLocalVariableOp)
+			return (DecodedLocalVariableOp) frame.decodedOp;
+		return null;
+	}
+	
+	private static int slotOf(DecodedLocalVariableOp op) {
+		if(op.parameterTypes.length > 0)
+			return op.parameterValues[0];
+		return op.op.getCode() - op.op.as(LocalVariableOpcode.class).getBaseOpcode();
+	}
+	
+	/**
+	 * Builds the StackMapTable, with a full frame at each jump target, exception handler and instruction following an
+	 * unconditional jump.
+	 * @return the StackMapTable, or null if the types are not enough to describe a frame.
+	 */
+	StackMapTable stackMapTable() {
+		int codeLength = codeAttribute.getCodeLength();
+		boolean[] needsFrame = new boolean[codeLength + 1];
+		byte[] code = codeAttribute.getCode();
+		int initialized = -1;
+		for(int ordinal = 0; ordinal < frames.size(); ordinal++) {
+			Frame frame = frames.get(ordinal);
+			if(!frame.isAccessible)
+				return unsupported("dead code at " + frame.index);
+			// the targets are read from the code, the decoded ops may predate an insertion
+			int index = frame.index, opcode = code[index] & 0xff;
+			if(opcode == Opcode.JSR || opcode == Opcode.JSR_W || opcode == Opcode.RET)
+				return unsupported("subroutine at " + index);
+			if((opcode >= Opcode.IFEQ && opcode <= Opcode.GOTO) || opcode == Opcode.IFNULL || opcode == Opcode.IFNONNULL)
+				needsFrame[index + ByteArray.readS16bit(code, index + 1)] = true;
+			else if(opcode == Opcode.GOTO_W)
+				needsFrame[index + ByteArray.read32bit(code, index + 1)] = true;
+			else if(opcode == Opcode.TABLESWITCH || opcode == Opcode.LOOKUPSWITCH) {
+				int pos = (index & ~3) + 4;
+				needsFrame[index + ByteArray.read32bit(code, pos)] = true;
+				if(opcode == Opcode.TABLESWITCH) {
+					int nbOffsets = ByteArray.read32bit(code, pos + 8) - ByteArray.read32bit(code, pos + 4) + 1;
+					for(int i = 0; i < nbOffsets; i++)
+						needsFrame[index + ByteArray.read32bit(code, pos + 12 + i * 4)] = true;
+				} else {
+					int nbPairs = ByteArray.read32bit(code, pos + 4);
+					for(int i = 0; i < nbPairs; i++)
+						needsFrame[index + ByteArray.read32bit(code, pos + 12 + i * 8)] = true;
+				}
+			}
+			if(opcode == Opcode.GOTO || opcode == Opcode.GOTO_W || opcode == Opcode.ATHROW || opcode == Opcode.TABLESWITCH || opcode == Opcode.LOOKUPSWITCH || (opcode >= Opcode.IRETURN && opcode <= Opcode.RETURN))
+				needsFrame[ordinal + 1 < frames.size() ? frames.get(ordinal + 1).index : codeLength] = true;
+			if(initialized == -1 && isThisInitialization(frame))
+				initialized = frame.index;
+		}
+		ExceptionTable exceptionTable = codeAttribute.getExceptionTable();
+		for(int i = 0; i < exceptionTable.size(); i++)
+			needsFrame[exceptionTable.handlerPc(i)] = true;
+		// a local variable out of the LocalVariableTable (like the temporaries of javac) is known only until the next frame
+		boolean[] stored = new boolean[codeAttribute.getMaxLocals()];
+		for(Frame frame : frames) {
+			if(needsFrame[frame.index])
+				Arrays.fill(stored, false);
+			DecodedLocalVariableOp op = localVariableOp(frame);
+			if(op != null) {
+				int slot = slotOf(op);
+				if(!op.load && op.op.getCode() != Opcode.IINC)
+					stored[slot] = true;
+				else if(!stored[slot] && !isDeclared(slot, frame.index))
+					return unsupported("local variable of unknown type at " + frame.index);
+			}
+		}
+		
+		StackMapTable.Writer writer = new StackMapTable.Writer(32);
+		int previous = -1;
+		for(int index = 0; index < codeLength; index++) {
+			if(!needsFrame[index])
+				continue;
+			if(frames.behavior instanceof CtConstructor && index <= initialized)
+				return unsupported("uninitialized this at " + index);
+			int[][] locals = localsAt(index);
+			int[][] stack = isHandler(exceptionTable, index) ? handlerStack(exceptionTable, index) : stackAt(index);
+			if(locals == null || stack == null)
+				return unsupported("unknown type at " + index);
+			writer.fullFrame(previous == -1 ? index : index - previous - 1, locals[0], locals[1], stack[0], stack[1]);
+			previous = index;
+		}
+		return writer.toStackMapTable(constPool);
+	}
+	
+	private StackMapTable unsupported(String reason) {
+		if(LOGGER.isDebugEnabled())
+			LOGGER.debug("cannot generate the StackMapTable of " + frames.behavior.getLongName() + " from its frames (" + reason + "), rebuilding it");
+		return null;
+	}
+	
+	/**
+	 * States if the given slot holds a parameter or a variable of the LocalVariableTable at the given index.
+	 */
+	private boolean isDeclared(int slot, int index) {
+		if(slot < parameterTypes().length)
+			return true;
+		for(LocalVariable localVariable : localVariables())
+			if(localVariable.getSlot() == slot && localVariable.getStart() <= index && index < localVariable.getEnd())
+				return true;
+		return false;
+	}
+	
+	/**
+	 * States if the given frame is the call of the super or this constructor in a constructor.
+	 */
+	private boolean isThisInitialization(Frame frame) {
+		if(!(frames.behavior instanceof CtConstructor) || !(frame.decodedOp instanceof DecodedMethodInvocationOp))
+			return false;
+		DecodedMethodInvocationOp op = (DecodedMethodInvocationOp) frame.decodedOp;
+		if(!"<init>".equals(op.getName()))
+			return false;
+		StackElement subject = frame.getStackBefore().getFromTop(StackElementLength.add(op.getPops()));
+		return subject instanceof ValueFromLocalVariable && ((ValueFromLocalVariable) subject).localVariable != null && ((ValueFromLocalVariable) subject).localVariable.getSlot() == 0;
+	}
+	
+	/**
+	 * Gets the verification types of the locals at the given index: the parameters, then the variables of the LocalVariableTable in their validity range.
+	 * @return the tags and the data of the locals, or null if a type is unknown.
+	 */
+	private int[][] localsAt(int index) {
+		String[] types = Arrays.copyOf(parameterTypes(), codeAttribute.getMaxLocals());
+		for(LocalVariable localVariable : localVariables())
+			if(localVariable.getStart() <= index && index < localVariable.getEnd() && localVariable.getSlot() < types.length)
+				types[localVariable.getSlot()] = localVariable.type.signature;
+		int n = 0, size = 0;
+		int[] tags = new int[types.length], data = new int[types.length];
+		for(int slot = 0; slot < types.length; slot++) {
+			if(types[slot] == null)
+				tags[n++] = StackMapTable.TOP;
+			else {
+				if(!verificationType(types[slot], tags, data, n++))
+					return null;
+				if(tags[n - 1] == StackMapTable.LONG || tags[n - 1] == StackMapTable.DOUBLE)
+					slot++;
+				size = n;
+			}
+		}
+		return new int[][] { Arrays.copyOf(tags, size), Arrays.copyOf(data, size) };
+	}
+	
+	/**
+	 * Gets the verification types of the stack at the given index, from the bottom to the top.
+	 * @return the tags and the data of the stack, or null if a type is unknown.
+	 */
+	private int[][] stackAt(int index) {
+		Stack stack = frames.frames[index].getStackBefore();
+		int[] tags = new int[stack.size()], data = new int[stack.size()];
+		int n = 0;
+		for(int i = stack.size() - 1; i >= 0; i--) {
+			StackElement se = stack.getFromTop(i);
+			if(se instanceof TOP)
+				continue;
+			if(se instanceof IntegerConstant)
+				tags[n] = StackMapTable.INTEGER;
+			else if(se instanceof FloatConstant)
+				tags[n] = StackMapTable.FLOAT;
+			else if(se instanceof LongConstant)
+				tags[n] = StackMapTable.LONG;
+			else if(se instanceof DoubleConstant)
+				tags[n] = StackMapTable.DOUBLE;
+			else if(se instanceof StringConstant) {
+				tags[n] = StackMapTable.OBJECT;
+				data[n] = constPool.addClassInfo("java.lang.String");
+			} else if(se instanceof ValueFromLocalVariable && ((ValueFromLocalVariable) se).localVariable != null) {
+				if(!verificationType(((ValueFromLocalVariable) se).localVariable.type.signature, tags, data, n))
+					return null;
+			} else return null;
+			n++;
+		}
+		return new int[][] { Arrays.copyOf(tags, n), Arrays.copyOf(data, n) };
+	}
+	
+	private static boolean isHandler(ExceptionTable exceptionTable, int index) {
+		for(int i = 0; i < exceptionTable.size(); i++)
+			if(exceptionTable.handlerPc(i) == index)
+				return true;
+		return false;
+	}
+	
+	/**
+	 * Gets the stack at the start of an exception handler, which holds the caught exception.
+	 * @return the tag and the data of the exception, or null if the handler catches several types.
+	 */
+	private int[][] handlerStack(ExceptionTable exceptionTable, int index) {
+		int catchType = -1;
+		for(int i = 0; i < exceptionTable.size(); i++) {
+			if(exceptionTable.handlerPc(i) == index) {
+				if(catchType != -1 && catchType != exceptionTable.catchType(i))
+					return null;
+				catchType = exceptionTable.catchType(i);
+			}
+		}
+		return new int[][] { { StackMapTable.OBJECT }, { catchType == 0 ? constPool.addClassInfo("java.lang.Throwable") : catchType } };
+	}
+	
+	/**
+	 * Sets the verification type of the given field descriptor at the given position of tags and data.
+	 * @return false if the descriptor is not a field descriptor.
+	 */
+	private boolean verificationType(String descriptor, int[] tags, int[] data, int n) {
+		switch(descriptor.charAt(0)) {
+			case 'Z': case 'B': case 'C': case 'S': case 'I':
+				tags[n] = StackMapTable.INTEGER;
+				return true;
+			case 'F':
+				tags[n] = StackMapTable.FLOAT;
+				return true;
+			case 'J':
+				tags[n] = StackMapTable.LONG;
+				return true;
+			case 'D':
+				tags[n] = StackMapTable.DOUBLE;
+				return true;
+			case 'L':
+				tags[n] = StackMapTable.OBJECT;
+				data[n] = constPool.addClassInfo(descriptor.substring(1, descriptor.length() - 1));
+				return true;
+			case '[':
+				tags[n] = StackMapTable.OBJECT;
+				data[n] = constPool.addClassInfo(descriptor);
+				return true;
+			default:
+				return false;
+		}
+	}
+	
+	/**
+	 * @return the descriptors of the slots holding the receiver and the parameters, null for the second slot of the two-words ones.
+	 */
+	private String[] parameterTypes() {
+		String[] parameters = ConstPoolCache.parameterDescriptors(methodInfo.getDescriptor());
+		String[] types = new String[parameters.length * 2 + 1];
+		int slot = 0;
+		if(!Modifier.isStatic(methodInfo.getAccessFlags()))
+			types[slot++] = "L" + constPool.getClassName().replace('.', '/') + ";";
+		for(String parameter : parameters) {
+			types[slot] = parameter;
+			slot += words(parameter);
+		}
+		return Arrays.copyOf(types, slot);
+	}
+	
+	private static int words(String descriptor) {
+		return ConstPoolCache.lengthOf(descriptor) == StackElementLength.DOUBLE ? 2 : 1;
+	}
+	
+	private LocalVariable[] localVariables() {
+		if(localVariables == null) {
+			Collection<LocalVariable> values;
+			try {
+				values = frames.context != null ? frames.context.localVariables.values() : LocalVariable.findVariables(frames.behavior).values();
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+			localVariables = values.toArray(new LocalVariable[values.size()]);
+		}
+		return localVariables;
+	}
+}
@@ -25,9 +25,14 @@ package bytecodeparser.analysis.stack;
  *
  */
 public class TOP extends StackElement {
+	/**
+	 * The shared TOP instance.
+	 */
+	public static final TOP INSTANCE = new TOP();
+	
 	@Override
 	public StackElement copy() {
-		return new TOP();
+		return this;
 	}
 	@Override
 	public String toString() {
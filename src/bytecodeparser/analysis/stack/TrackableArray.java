@@ -71,7 +71,7 @@ public class TrackableArray extends Array {
 	}
 	private static StackElement[] makeNewArray(int size) {
 		StackElement[] result = new StackElement[size];
-		Arrays.fill(result, new VoidElement());
+		Arrays.fill(result, VoidElement.INSTANCE);
 		return result;
 	}
 	
@@ -19,10 +19,20 @@
  */
 package bytecodeparser.analysis.stack;
 
+/**
+ * A StackElement that fills the slots of a new array.
+ * @author Stephane Godbillon
+ *
+ */
 public class VoidElement extends StackElement {
+	/**
+	 * The shared instance. Arrays are filled with it.
+	 */
+	public static final VoidElement INSTANCE = new VoidElement();
+	
 	@Override
 	public StackElement copy() {
-		return new VoidElement();
+		return this;
 	}
 	@Override
 	public String toString() {
@@ -25,9 +25,14 @@ package bytecodeparser.analysis.stack;
  *
  */
 public class Whatever extends StackElement {
+	/**
+	 * The shared instance, to be pushed instead of a new Whatever.
+	 */
+	public static final Whatever INSTANCE = new Whatever();
+	
 	@Override
 	public StackElement copy() {
-		return new Whatever();
+		return this;
 	}
 	@Override
 	public String toString() {
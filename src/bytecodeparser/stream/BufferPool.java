@@ -0,0 +1,88 @@
+/*
+ *  Copyright (C) 2011 Stephane Godbillon
+ *  
+ *  This file is part of BytecodeParser. See the README file in the root
+ *  directory of this project.
+ *
+ *  BytecodeParser is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+
+ *  BytecodeParser is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with BytecodeParser.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bytecodeparser.stream;
+
+/**
+ * A bounded pool of byte arrays, used to inflate the entries of jar files without allocating a new array for each of them.
+ * The pool keeps at most a fixed number of arrays; bigger arrays than the maximum pooled size are never kept.
+ * It can be shared between several threads.
+ * @author Stephane Godbillon
+ *
+ */
+public class BufferPool {
+	/**
+	 * Default maximum number of pooled buffers.
+	 */
+	public static final int DEFAULT_CAPACITY = 16;
+	/**
+	 * Default size above which a buffer is not pooled.
+	 */
+	public static final int DEFAULT_MAX_BUFFER_SIZE = 1 << 20;
+	
+	private final byte[][] buffers;
+	private final int maxBufferSize;
+	private int size;
+	
+	public BufferPool(int capacity, int maxBufferSize) {
+		this.buffers = new byte[capacity][];
+		this.maxBufferSize = maxBufferSize;
+	}
+	
+	public BufferPool() {
+		this(DEFAULT_CAPACITY, DEFAULT_MAX_BUFFER_SIZE);
+	}
+	
+	/**
+	 * Gets a buffer of at least the given length.
+	 * @param length
+	 */
+	public synchronized byte[] acquire(int length) {
+		for(int i = 0; i < size; i++) {
+			if(buffers[i].length >= length) {
+				byte[] buffer = buffers[i];
+				buffers[i] = buffers[--size];
+				buffers[size] = null;
+				return buffer;
+			}
+		}
+		// round up so that the buffer can be reused for slightly bigger entries
+		return new byte[length <= maxBufferSize ? Math.max(Integer.highestOneBit(Math.max(length - 1, 1)) << 1, 1024) : length];
+	}
+	
+	/**
+	 * Gives back a buffer to the pool. The buffer must not be used anymore.
+	 * @param buffer
+	 */
+	public synchronized void release(byte[] buffer) {
+		if(buffer.length > maxBufferSize)
+			return;
+		if(size < buffers.length) {
+			buffers[size++] = buffer;
+		} else {
+			// keep the biggest buffers
+			for(int i = 0; i < size; i++) {
+				if(buffers[i].length < buffer.length) {
+					buffers[i] = buffer;
+					return;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,45 @@
+/*
+ *  Copyright (C) 2011 Stephane Godbillon
+ *  
+ *  This file is part of BytecodeParser. See the README file in the root
+ *  directory of this project.
+ *
+ *  BytecodeParser is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+
+ *  BytecodeParser is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with BytecodeParser.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bytecodeparser.stream;
+
+import bytecodeparser.analysis.opcodes.Op;
+
+/**
+ * A handler for the methods and opcodes of a class file, used when streaming it with the ClassFileReader.
+ * @author Stephane Godbillon
+ * @see ClassFileReader#accept(ClassFileHandler)
+ */
+public interface ClassFileHandler {
+	/**
+	 * Called before the opcodes of a method having some code are handled.
+	 * @param method the method, which is reused for the next methods of the class.
+	 * @return true if the opcodes of this method should be handled, false to skip it.
+	 */
+	boolean startMethod(MethodCode method);
+	
+	/**
+	 * Handle the given op at the given index of the code of the given method.
+	 * The op is not initialized with a Context; its operands can be read from the method.
+	 * @param op
+	 * @param index
+	 * @param method
+	 */
+	void handle(Op op, int index, MethodCode method);
+}
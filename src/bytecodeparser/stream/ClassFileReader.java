@@ -0,0 +1,391 @@
+/*
+ *  Copyright (C) 2011 Stephane Godbillon
+ *  
+ *  This file is part of BytecodeParser. See the README file in the root
+ *  directory of this project.
+ *
+ *  BytecodeParser is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+
+ *  BytecodeParser is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with BytecodeParser.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bytecodeparser.stream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import javassist.bytecode.BadBytecode;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.Opcode;
+import bytecodeparser.analysis.Opcodes;
+import bytecodeparser.analysis.opcodes.Op;
+
+/**
+ * A streaming reader of class files.
+ * 
+ * The class file is read directly from a ByteBuffer: the constant pool is indexed once, then the Code attributes of the methods
+ * are walked and their opcodes are sent to a ClassFileHandler. No javassist CtClass is created, and nothing else is allocated
+ * per class but the constant pool index and the strings that are explicitly requested.
+ * 
+ * The buffer is read with absolute gets, so its position and limit are left unchanged.
+ * 
+ * @author Stephane Godbillon
+ *
+ */
+public class ClassFileReader {
+	private static final int MAGIC = 0xCAFEBABE;
+	/**
+	 * The length of each opcode, 0 for the variable-length ones (switches and wide) and the undefined ones.
+	 */
+	private static final int[] OPCODE_LENGTHS = {
+		1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 2, 3, 2, 3,
+		3, 2, 2, 2, 2, 2, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1,
+		1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 2, 2, 2, 2, 2, 1,
+		1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1,
+		1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1,
+		1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1,
+		1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 3, 1, 1, 1, 1, 1, 1, 1,
+		1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 3, 3, 3, 3, 3, 3, 3,
+		3, 3, 3, 3, 3, 3, 3, 3, 3, 2, 0, 0, 1, 1, 1, 1, 1, 1, 3, 3,
+		3, 3, 3, 3, 3, 5, 5, 3, 2, 3, 1, 1, 3, 3, 1, 1, 0, 4, 3, 3,
+		5, 5, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+		0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+		0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0
+	};
+	
+	private final ByteBuffer buffer;
+	private final int base;
+	/**
+	 * The offset of each constant pool entry (the offset of its tag), relative to the start of the class file.
+	 */
+	private final int[] constantPool;
+	private final int accessFlags, thisClass, superClass;
+	/**
+	 * Offset of the interfaces count.
+	 */
+	private final int interfacesOffset;
+	private final MethodCode method = new MethodCode(this);
+	
+	/**
+	 * Creates a reader of the class file starting at the current position of the given buffer, and indexes its constant pool.
+	 * @param buffer
+	 * @throws BadBytecode if the buffer does not hold a class file.
+	 */
+	public ClassFileReader(ByteBuffer buffer) throws BadBytecode {
+		this.buffer = buffer;
+		this.base = buffer.position();
+		try {
+			if(s4(0) != MAGIC)
+				throw new BadBytecode("not a class file (bad magic number)");
+			int count = u2(8);
+			this.constantPool = new int[count];
+			int offset = 10;
+			for(int i = 1; i < count; i++) {
+				constantPool[i] = offset;
+				int tag = u1(offset);
+				switch(tag) {
+					case ConstPool.CONST_Utf8:
+						offset += 3 + u2(offset + 1);
+						break;
+					case ConstPool.CONST_Integer:
+					case ConstPool.CONST_Float:
+					case ConstPool.CONST_Fieldref:
+					case ConstPool.CONST_Methodref:
+					case ConstPool.CONST_InterfaceMethodref:
+					case ConstPool.CONST_NameAndType:
+					case 17: // Dynamic
+					case 18: // InvokeDynamic
+						offset += 5;
+						break;
+					case ConstPool.CONST_Long:
+					case ConstPool.CONST_Double:
+						offset += 9;
+						i++;
+						break;
+					case ConstPool.CONST_Class:
+					case ConstPool.CONST_String:
+					case 16: // MethodType
+					case 19: // Module
+					case 20: // Package
+						offset += 3;
+						break;
+					case 15: // MethodHandle
+						offset += 4;
+						break;
+					default:
+						throw new BadBytecode("invalid constant pool tag " + tag + " at entry " + i);
+				}
+			}
+			this.accessFlags = u2(offset);
+			this.thisClass = u2(offset + 2);
+			this.superClass = u2(offset + 4);
+			this.interfacesOffset = offset + 6;
+		} catch (IndexOutOfBoundsException e) {
+			throw new BadBytecode("truncated class file");
+		}
+	}
+	
+	/**
+	 * Maps the given class file in memory and creates a reader for it.
+	 * @param file
+	 * @throws IOException if the file cannot be read.
+	 * @throws BadBytecode if the file is not a class file.
+	 */
+	public static ClassFileReader map(File file) throws IOException, BadBytecode {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			return new ClassFileReader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		} finally {
+			raf.close();
+		}
+	}
+	
+	/**
+	 * Walks the code of every method of the class and sends its opcodes to the given handler.
+	 * Opcodes not supported by this library (like invokedynamic) are skipped.
+	 * @param handler
+	 * @throws BadBytecode if the class file is wrong.
+	 */
+	public void accept(ClassFileHandler handler) throws BadBytecode {
+		try {
+			int offset = interfacesOffset;
+			offset += 2 + 2 * u2(offset);
+			int fieldsCount = u2(offset);
+			offset += 2;
+			for(int i = 0; i < fieldsCount; i++)
+				offset = skipAttributes(offset + 6);
+			int methodsCount = u2(offset);
+			offset += 2;
+			for(int i = 0; i < methodsCount; i++) {
+				int attributesCount = u2(offset + 6);
+				method.accessFlags = u2(offset);
+				method.nameIndex = u2(offset + 2);
+				method.descriptorIndex = u2(offset + 4);
+				offset += 8;
+				for(int j = 0; j < attributesCount; j++) {
+					int length = s4(offset + 2);
+					if(utf8Equals(u2(offset), "Code"))
+						visitCode(offset + 6, handler);
+					offset += 6 + length;
+				}
+			}
+		} catch (IndexOutOfBoundsException e) {
+			throw new BadBytecode("truncated class file");
+		}
+	}
+	
+	private void visitCode(int offset, ClassFileHandler handler) throws BadBytecode {
+		method.maxStack = u2(offset);
+		method.maxLocals = u2(offset + 2);
+		method.codeLength = s4(offset + 4);
+		method.codeOffset = offset + 8;
+		method.localVariablesOffset = -1;
+		method.nbLocalVariables = 0;
+		int attributes = method.codeOffset + method.codeLength;
+		attributes += 2 + 8 * u2(attributes);
+		int attributesCount = u2(attributes);
+		attributes += 2;
+		for(int i = 0; i < attributesCount; i++) {
+			if(utf8Equals(u2(attributes), "LocalVariableTable")) {
+				method.nbLocalVariables = u2(attributes + 6);
+				method.localVariablesOffset = attributes + 8;
+				break;
+			}
+			attributes += 6 + s4(attributes + 2);
+		}
+		if(!handler.startMethod(method))
+			return;
+		int index = 0;
+		while(index < method.codeLength) {
+			int code = method.byteAt(index);
+			Op op = Opcodes.get(code);
+			if(op != null)
+				handler.handle(op, index, method);
+			index = nextIndex(index, code);
+		}
+	}
+	
+	private int nextIndex(int index, int code) throws BadBytecode {
+		int length = OPCODE_LENGTHS[code];
+		if(length > 0)
+			return index + length;
+		if(code == Opcode.WIDE)
+			return index + (method.byteAt(index + 1) == Opcode.IINC ? 6 : 4);
+		int padded = (index & ~3) + 4;
+		if(code == Opcode.TABLESWITCH)
+			return padded + 12 + 4 * (method.s32bitAt(padded + 8) - method.s32bitAt(padded + 4) + 1);
+		if(code == Opcode.LOOKUPSWITCH)
+			return padded + 8 + 8 * method.s32bitAt(padded + 4);
+		throw new BadBytecode(code);
+	}
+	
+	private int skipAttributes(int offset) {
+		int attributesCount = u2(offset);
+		offset += 2;
+		for(int i = 0; i < attributesCount; i++)
+			offset += 6 + s4(offset + 2);
+		return offset;
+	}
+	
+	/**
+	 * @return the access flags of the class.
+	 */
+	public int getAccessFlags() {
+		return accessFlags;
+	}
+	
+	/**
+	 * @return the name of the class, with dots as package separators.
+	 */
+	public String getClassName() {
+		return getClassInfo(thisClass);
+	}
+	
+	/**
+	 * @return the name of the super class, null if there is none.
+	 */
+	public String getSuperClassName() {
+		return superClass == 0 ? null : getClassInfo(superClass);
+	}
+	
+	/**
+	 * @return the number of entries of the constant pool, including the unused entry 0.
+	 */
+	public int getConstantPoolSize() {
+		return constantPool.length;
+	}
+	
+	/**
+	 * @return the tag of the given constant pool entry.
+	 */
+	public int getTag(int index) {
+		return u1(constantPool[index]);
+	}
+	
+	/**
+	 * Gets the name of a CONSTANT_Class entry.
+	 * @param index
+	 * @return the name of the class, with dots as package separators.
+	 */
+	public String getClassInfo(int index) {
+		return getUtf8(u2(constantPool[index] + 1)).replace('/', '.');
+	}
+	
+	/**
+	 * Gets the class name of a field or method reference, like the one used by an invoke or a field opcode.
+	 * @param index the index of the Fieldref, Methodref or InterfaceMethodref entry.
+	 * @return the name of the class, with dots as package separators.
+	 */
+	public String getMemberClassName(int index) {
+		return getClassInfo(u2(constantPool[index] + 1));
+	}
+	
+	/**
+	 * Gets the name of a field or method reference.
+	 * @param index the index of the Fieldref, Methodref or InterfaceMethodref entry.
+	 */
+	public String getMemberName(int index) {
+		return getUtf8(getMemberNameIndex(index));
+	}
+	
+	/**
+	 * States if the name of a field or method reference is the given one, without decoding it.
+	 * @param index the index of the Fieldref, Methodref or InterfaceMethodref entry.
+	 * @param name
+	 */
+	public boolean memberNameEquals(int index, String name) {
+		return utf8Equals(getMemberNameIndex(index), name);
+	}
+	
+	/**
+	 * Gets the descriptor of a field or method reference.
+	 * @param index the index of the Fieldref, Methodref or InterfaceMethodref entry.
+	 */
+	public String getMemberDescriptor(int index) {
+		int nameAndType = u2(constantPool[index] + 3);
+		return getUtf8(u2(constantPool[nameAndType] + 3));
+	}
+	
+	private int getMemberNameIndex(int index) {
+		int nameAndType = u2(constantPool[index] + 3);
+		return u2(constantPool[nameAndType] + 1);
+	}
+	
+	/**
+	 * Decodes a CONSTANT_Utf8 entry.
+	 * @param index
+	 */
+	public String getUtf8(int index) {
+		int offset = constantPool[index];
+		int length = u2(offset + 1);
+		char[] chars = new char[length];
+		int nbChars = 0;
+		for(int i = offset + 3, end = i + length; i < end; ) {
+			int c = u1(i++);
+			if(c < 0x80) {
+				chars[nbChars++] = (char) c;
+			} else if(c < 0xE0) {
+				chars[nbChars++] = (char) ((c & 0x1F) << 6 | u1(i++) & 0x3F);
+			} else {
+				chars[nbChars++] = (char) ((c & 0x0F) << 12 | (u1(i) & 0x3F) << 6 | u1(i + 1) & 0x3F);
+				i += 2;
+			}
+		}
+		return new String(chars, 0, nbChars);
+	}
+	
+	/**
+	 * States if a CONSTANT_Utf8 entry equals the given string, without decoding it.
+	 * @param index
+	 * @param value
+	 */
+	public boolean utf8Equals(int index, String value) {
+		int offset = constantPool[index];
+		int length = u2(offset + 1);
+		int nbChars = 0;
+		for(int i = offset + 3, end = i + length; i < end; nbChars++) {
+			int c = u1(i++);
+			char decoded;
+			if(c < 0x80) {
+				decoded = (char) c;
+			} else if(c < 0xE0) {
+				decoded = (char) ((c & 0x1F) << 6 | u1(i++) & 0x3F);
+			} else {
+				decoded = (char) ((c & 0x0F) << 12 | (u1(i) & 0x3F) << 6 | u1(i + 1) & 0x3F);
+				i += 2;
+			}
+			if(nbChars >= value.length() || value.charAt(nbChars) != decoded)
+				return false;
+		}
+		return nbChars == value.length();
+	}
+	
+	int u1(int offset) {
+		return buffer.get(base + offset) & 0xFF;
+	}
+	
+	int u2(int offset) {
+		return (buffer.get(base + offset) & 0xFF) << 8 | buffer.get(base + offset + 1) & 0xFF;
+	}
+	
+	int s4(int offset) {
+		return u2(offset) << 16 | u2(offset + 2);
+	}
+	
+	@Override
+	public String toString() {
+		return "ClassFileReader of " + getClassName();
+	}
+}
@@ -0,0 +1,258 @@
+/*
+ *  Copyright (C) 2011 Stephane Godbillon
+ *  
+ *  This file is part of BytecodeParser. See the README file in the root
+ *  directory of this project.
+ *
+ *  BytecodeParser is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+
+ *  BytecodeParser is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with BytecodeParser.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bytecodeparser.stream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.bytecode.BadBytecode;
+
+/**
+ * A scanner of the class files of a jar.
+ * 
+ * The jar is mapped in memory and its entries are located from the central directory of the zip file.
+ * The class files are given to an EntryHandler as ByteBuffers: stored entries are slices of the mapped jar,
+ * deflated entries are inflated into buffers taken from a BufferPool.
+ * Zip64 archives are not supported.
+ * 
+ * The buffers can be read with a ClassFileReader, or turned into CtClasses for the CodeParser or the StackAnalyzer with toCtClass().
+ * 
+ * @author Stephane Godbillon
+ *
+ */
+public class JarScanner {
+	private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+	private static final int CENTRAL_DIRECTORY_HEADER = 0x02014b50;
+	private static final int LOCAL_FILE_HEADER = 0x04034b50;
+	private static final int STORED = 0, DEFLATED = 8;
+	
+	/**
+	 * The scanned jar.
+	 */
+	public final File jar;
+	private final ByteBuffer buffer;
+	private final int centralDirectoryOffset, nbEntries;
+	private final BufferPool bufferPool;
+	
+	/**
+	 * Maps the given jar in memory and reads the location of its central directory.
+	 * @param jar
+	 * @param bufferPool the pool of the buffers the deflated entries are inflated into.
+	 * @throws IOException if the jar cannot be read, is not a zip file or is a zip64 file.
+	 */
+	public JarScanner(File jar, BufferPool bufferPool) throws IOException {
+		this.jar = jar;
+		this.bufferPool = bufferPool;
+		RandomAccessFile raf = new RandomAccessFile(jar, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			if(channel.size() > Integer.MAX_VALUE)
+				throw new IOException(jar + " is too big to be mapped (zip64 is not supported)");
+			this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+		} finally {
+			raf.close();
+		}
+		int end = findEndOfCentralDirectory();
+		if(end == -1)
+			throw new IOException(jar + " is not a zip file");
+		this.nbEntries = buffer.getShort(end + 10) & 0xFFFF;
+		this.centralDirectoryOffset = buffer.getInt(end + 16);
+		if(nbEntries == 0xFFFF || centralDirectoryOffset == -1)
+			throw new IOException(jar + " is a zip64 file, which is not supported");
+	}
+	
+	public JarScanner(File jar) throws IOException {
+		this(jar, new BufferPool());
+	}
+	
+	private int findEndOfCentralDirectory() {
+		// the end of central directory record is 22 bytes long, followed by a comment of at most 65535 bytes
+		int limit = Math.max(0, buffer.capacity() - 22 - 0xFFFF);
+		for(int offset = buffer.capacity() - 22; offset >= limit; offset--)
+			if(buffer.getInt(offset) == END_OF_CENTRAL_DIRECTORY)
+				return offset;
+		return -1;
+	}
+	
+	/**
+	 * @return the number of entries of the jar, class files or not.
+	 */
+	public int getNbEntries() {
+		return nbEntries;
+	}
+	
+	/**
+	 * Gives every class file of the jar accepted by the handler to this handler.
+	 * @param handler
+	 * @throws IOException if the jar is corrupted.
+	 * @throws BadBytecode thrown by the handler.
+	 */
+	public void scan(EntryHandler handler) throws IOException, BadBytecode {
+		Inflater inflater = new Inflater(true);
+		try {
+			int offset = centralDirectoryOffset;
+			for(int i = 0; i < nbEntries; i++) {
+				if(buffer.getInt(offset) != CENTRAL_DIRECTORY_HEADER)
+					throw new IOException("bad central directory header in " + jar + " at " + offset);
+				int method = buffer.getShort(offset + 10) & 0xFFFF;
+				int compressedSize = buffer.getInt(offset + 20);
+				int size = buffer.getInt(offset + 24);
+				int nameLength = buffer.getShort(offset + 28) & 0xFFFF;
+				int extraLength = buffer.getShort(offset + 30) & 0xFFFF;
+				int commentLength = buffer.getShort(offset + 32) & 0xFFFF;
+				int localHeaderOffset = buffer.getInt(offset + 42);
+				int nameOffset = offset + 46;
+				offset = nameOffset + nameLength + extraLength + commentLength;
+				if(!isClassFile(nameOffset, nameLength))
+					continue;
+				String className = getClassName(nameOffset, nameLength);
+				if(!handler.accept(className))
+					continue;
+				if(buffer.getInt(localHeaderOffset) != LOCAL_FILE_HEADER)
+					throw new IOException("bad local file header in " + jar + " for " + className);
+				int dataOffset = localHeaderOffset + 30 + (buffer.getShort(localHeaderOffset + 26) & 0xFFFF) + (buffer.getShort(localHeaderOffset + 28) & 0xFFFF);
+				if(method == STORED) {
+					handler.handle(className, slice(dataOffset, size));
+				} else if(method == DEFLATED) {
+					byte[] input = bufferPool.acquire(compressedSize);
+					byte[] output = bufferPool.acquire(size);
+					try {
+						ByteBuffer data = buffer.duplicate();
+						data.position(dataOffset);
+						data.get(input, 0, compressedSize);
+						inflater.reset();
+						inflater.setInput(input, 0, compressedSize);
+						int inflated = 0;
+						while(inflated < size && !inflater.finished()) {
+							int n = inflater.inflate(output, inflated, size - inflated);
+							if(n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+								break;
+							inflated += n;
+						}
+						if(inflated != size)
+							throw new IOException("truncated entry " + className + " in " + jar);
+						handler.handle(className, ByteBuffer.wrap(output, 0, size).slice());
+					} catch (DataFormatException e) {
+						throw new IOException("bad compressed data for " + className + " in " + jar + ": " + e.getMessage());
+					} finally {
+						bufferPool.release(input);
+						bufferPool.release(output);
+					}
+				} else {
+					throw new IOException("unsupported compression method " + method + " for " + className + " in " + jar);
+				}
+			}
+		} finally {
+			inflater.end();
+		}
+	}
+	
+	private ByteBuffer slice(int offset, int length) {
+		ByteBuffer data = buffer.duplicate();
+		data.position(offset);
+		data.limit(offset + length);
+		return data.slice();
+	}
+	
+	private boolean isClassFile(int nameOffset, int nameLength) {
+		return nameLength > 6 && buffer.get(nameOffset + nameLength - 6) == '.' && buffer.get(nameOffset + nameLength - 5) == 'c'
+			&& buffer.get(nameOffset + nameLength - 4) == 'l' && buffer.get(nameOffset + nameLength - 3) == 'a'
+			&& buffer.get(nameOffset + nameLength - 2) == 's' && buffer.get(nameOffset + nameLength - 1) == 's';
+	}
+	
+	private String getClassName(int nameOffset, int nameLength) throws IOException {
+		byte[] name = new byte[nameLength - 6];
+		ByteBuffer data = buffer.duplicate();
+		data.position(nameOffset);
+		data.get(name);
+		return new String(name, "UTF-8").replace('/', '.');
+	}
+	
+	/**
+	 * Makes a CtClass in the given pool from a class file given by a JarScanner, without copying it.
+	 * @param pool
+	 * @param classFile
+	 * @return the CtClass.
+	 * @throws IOException if the class file is wrong.
+	 */
+	public static CtClass toCtClass(ClassPool pool, ByteBuffer classFile) throws IOException {
+		return pool.makeClass(new ByteBufferInputStream(classFile.duplicate()));
+	}
+	
+	/**
+	 * A handler of the class files found by a JarScanner.
+	 * @author Stephane Godbillon
+	 *
+	 */
+	public static interface EntryHandler {
+		/**
+		 * States if the class of the given name should be handled.
+		 * @param className the fully-qualified name of the class.
+		 */
+		boolean accept(String className);
+		/**
+		 * Handle the class file of the given class.
+		 * The buffer may be reused once this method has returned, so it must not be kept.
+		 * @param className the fully-qualified name of the class.
+		 * @param classFile the class file.
+		 * @throws BadBytecode if the class file is wrong.
+		 */
+		void handle(String className, ByteBuffer classFile) throws BadBytecode;
+	}
+	
+	/**
+	 * An InputStream reading a ByteBuffer.
+	 */
+	static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+		
+		ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+		
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if(!buffer.hasRemaining())
+				return -1;
+			len = Math.min(len, buffer.remaining());
+			buffer.get(b, off, len);
+			return len;
+		}
+		
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+}
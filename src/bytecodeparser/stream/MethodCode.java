@@ -0,0 +1,172 @@
+/*
+ *  Copyright (C) 2011 Stephane Godbillon
+ *  
+ *  This file is part of BytecodeParser. See the README file in the root
+ *  directory of this project.
+ *
+ *  BytecodeParser is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+
+ *  BytecodeParser is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with BytecodeParser.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bytecodeparser.stream;
+
+/**
+ * The code of a method being streamed by a ClassFileReader.
+ * The same instance is reused for all the methods of a class, so it must not be kept once the handler has returned.
+ * @author Stephane Godbillon
+ *
+ */
+public class MethodCode {
+	/**
+	 * The class file this method belongs to.
+	 */
+	public final ClassFileReader reader;
+	int accessFlags, nameIndex, descriptorIndex;
+	int maxStack, maxLocals;
+	/**
+	 * Offset of the first byte of code in the class file.
+	 */
+	int codeOffset;
+	int codeLength;
+	/**
+	 * Offset of the first entry of the LocalVariableTable, -1 if there is none.
+	 */
+	int localVariablesOffset;
+	int nbLocalVariables;
+	
+	MethodCode(ClassFileReader reader) {
+		this.reader = reader;
+	}
+	
+	/**
+	 * @return the access flags of this method.
+	 */
+	public int getAccessFlags() {
+		return accessFlags;
+	}
+	
+	/**
+	 * @return the name of this method.
+	 */
+	public String getName() {
+		return reader.getUtf8(nameIndex);
+	}
+	
+	/**
+	 * States if the name of this method is the given one, without decoding it.
+	 * @param name
+	 */
+	public boolean nameEquals(String name) {
+		return reader.utf8Equals(nameIndex, name);
+	}
+	
+	/**
+	 * @return the descriptor of this method.
+	 */
+	public String getDescriptor() {
+		return reader.getUtf8(descriptorIndex);
+	}
+	
+	/**
+	 * @return the max_stack value of the code.
+	 */
+	public int getMaxStack() {
+		return maxStack;
+	}
+	
+	/**
+	 * @return the max_locals value of the code.
+	 */
+	public int getMaxLocals() {
+		return maxLocals;
+	}
+	
+	/**
+	 * @return the length of the code, in bytes.
+	 */
+	public int getCodeLength() {
+		return codeLength;
+	}
+	
+	/**
+	 * @return the unsigned byte at the given index of the code.
+	 */
+	public int byteAt(int index) {
+		return reader.u1(codeOffset + index);
+	}
+	
+	/**
+	 * @return the signed byte at the given index of the code.
+	 */
+	public int signedByteAt(int index) {
+		return (byte) reader.u1(codeOffset + index);
+	}
+	
+	/**
+	 * @return the unsigned 16-bit value at the given index of the code.
+	 */
+	public int u16bitAt(int index) {
+		return reader.u2(codeOffset + index);
+	}
+	
+	/**
+	 * @return the signed 16-bit value at the given index of the code.
+	 */
+	public int s16bitAt(int index) {
+		return (short) reader.u2(codeOffset + index);
+	}
+	
+	/**
+	 * @return the signed 32-bit value at the given index of the code.
+	 */
+	public int s32bitAt(int index) {
+		return reader.s4(codeOffset + index);
+	}
+	
+	/**
+	 * Gets the name of the local variable of the given slot that is in scope at the given index of the code.
+	 * Note that a variable is not in scope at the index of the instruction that first stores it: use the index of the next instruction.
+	 * @param slot
+	 * @param index
+	 * @return the name of the variable, or null if the LocalVariableTable is missing or has no matching entry.
+	 */
+	public String getLocalVariableName(int slot, int index) {
+		int entry = findLocalVariable(slot, index);
+		return entry == -1 ? null : reader.getUtf8(reader.u2(entry + 4));
+	}
+	
+	/**
+	 * Gets the descriptor of the local variable of the given slot that is in scope at the given index of the code.
+	 * @param slot
+	 * @param index
+	 * @return the descriptor of the variable, or null if the LocalVariableTable is missing or has no matching entry.
+	 */
+	public String getLocalVariableDescriptor(int slot, int index) {
+		int entry = findLocalVariable(slot, index);
+		return entry == -1 ? null : reader.getUtf8(reader.u2(entry + 6));
+	}
+	
+	private int findLocalVariable(int slot, int index) {
+		for(int i = 0; i < nbLocalVariables; i++) {
+			int entry = localVariablesOffset + i * 10;
+			int start = reader.u2(entry);
+			if(reader.u2(entry + 8) == slot && index >= start && index < start + reader.u2(entry + 2))
+				return entry;
+		}
+		return -1;
+	}
+	
+	@Override
+	public String toString() {
+		return "MethodCode " + getName() + getDescriptor();
+	}
+}
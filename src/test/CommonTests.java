@@ -92,8 +92,8 @@ public class CommonTests {
 		String[] result = new String[nbParams];
 		if(nbParams > 0) {
 			int stackIndex = 0;
-			if(frame.stackBefore.stack.get(stackIndex) instanceof TrackableArray) {
-				StackElement[] varargs = ((TrackableArray) frame.stackBefore.stack.get(0)).elements;
+			if(frame.getStackBefore().getFromTop(stackIndex) instanceof TrackableArray) {
+				StackElement[] varargs = ((TrackableArray) frame.getStackBefore().getFromTop(0)).elements;
 				nbParams = nbParams + varargs.length - 1;
 				result = new String[nbParams];
 				for(int i = 0; i < varargs.length; i++, nbParams--) {
@@ -102,9 +102,9 @@ public class CommonTests {
 				stackIndex++;
 			}
 			while(nbParams > 0) {
-				StackElement se = frame.stackBefore.stack.get(stackIndex++);
+				StackElement se = frame.getStackBefore().getFromTop(stackIndex++);
 				if(se instanceof TOP)
-					se = frame.stackBefore.stack.get(stackIndex++);
+					se = frame.getStackBefore().getFromTop(stackIndex++);
 				result[nbParams - 1] = getLocalVariableName(se) + "(" + se + ")";
 				nbParams--;
 			}
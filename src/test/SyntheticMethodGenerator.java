@@ -0,0 +1,302 @@
+/*
+ *  Copyright (C) 2011 Stephane Godbillon
+ *  
+ *  This file is part of BytecodeParser. See the README file in the root
+ *  directory of this project.
+ *
+ *  BytecodeParser is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+
+ *  BytecodeParser is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with BytecodeParser.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javassist.CannotCompileException;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtMethod;
+import javassist.NotFoundException;
+import javassist.bytecode.AccessFlag;
+import javassist.bytecode.Bytecode;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.LocalVariableAttribute;
+import javassist.bytecode.MethodInfo;
+import javassist.bytecode.Opcode;
+
+/**
+ * Generates big static methods, up to the 64KB code limit, to test and measure how the parser and the analyzer scale.
+ * 
+ * The generated method declares a String <code>text</code>, a long <code>time</code>, a double <code>ratio</code> and
+ * <code>nbIntLocals</code> int locals, all described in a LocalVariableTable. Its body is a sequence of statements
+ * like <code>i3 = i1 + i2; i4++;</code>; some of them are wrapped in a try/catch, nested in switches, or followed by
+ * long/double arithmetic or a varargs call (<code>String.format()</code>), depending on the settings.
+ * With more than 256 locals, most of the local accesses are wide.
+ * 
+ * The generated code only references JDK classes, so it can be analyzed with the default ClassPool.
+ * @author Stephane Godbillon
+ *
+ */
+public class SyntheticMethodGenerator {
+	/**
+	 * The biggest length of a code attribute.
+	 */
+	public static final int MAX_CODE_LENGTH = 65535;
+	
+	private static final int TEXT = 0, TIME = 1, RATIO = 3, FIRST_INT = 5;
+	private static final int SWITCH_CASES = 3;
+	
+	private int maxCodeLength = MAX_CODE_LENGTH;
+	private int maxStatements = Integer.MAX_VALUE;
+	private int nbIntLocals = 8;
+	private int switchEvery = 0;
+	private int switchDepth = 1;
+	private int tryCatchEvery = 0;
+	private int longDoubleEvery = 0;
+	private int varargsEvery = 0;
+	
+	/**
+	 * Sets the maximum length of the generated code. The generator stops adding statements before reaching it.
+	 * Defaults to MAX_CODE_LENGTH.
+	 */
+	public SyntheticMethodGenerator setMaxCodeLength(int maxCodeLength) {
+		if(maxCodeLength > MAX_CODE_LENGTH)
+			throw new IllegalArgumentException("the code length cannot exceed " + MAX_CODE_LENGTH);
+		this.maxCodeLength = maxCodeLength;
+		return this;
+	}
+	
+	/**
+	 * Sets the maximum number of statements. Unbounded by default, the generation being limited by the code length.
+	 */
+	public SyntheticMethodGenerator setMaxStatements(int maxStatements) {
+		this.maxStatements = maxStatements;
+		return this;
+	}
+	
+	/**
+	 * Sets the number of int locals (defaults to 8). Over 250, the accesses to the last ones need wide opcodes.
+	 */
+	public SyntheticMethodGenerator setNbIntLocals(int nbIntLocals) {
+		if(nbIntLocals < 1)
+			throw new IllegalArgumentException("at least one int local is needed");
+		this.nbIntLocals = nbIntLocals;
+		return this;
+	}
+	
+	/**
+	 * Nests a statement out of <code>every</code> in switches (0 for none), <code>depth</code> levels deep.
+	 */
+	public SyntheticMethodGenerator setSwitches(int every, int depth) {
+		if(depth < 1)
+			throw new IllegalArgumentException("the switch depth must be at least 1");
+		this.switchEvery = every;
+		this.switchDepth = depth;
+		return this;
+	}
+	
+	/**
+	 * Wraps a statement out of <code>every</code> in a try/catch block (0 for none).
+	 */
+	public SyntheticMethodGenerator setTryCatchEvery(int every) {
+		this.tryCatchEvery = every;
+		return this;
+	}
+	
+	/**
+	 * Follows a statement out of <code>every</code> by some long and double arithmetic (0 for none).
+	 */
+	public SyntheticMethodGenerator setLongDoubleEvery(int every) {
+		this.longDoubleEvery = every;
+		return this;
+	}
+	
+	/**
+	 * Follows a statement out of <code>every</code> by a varargs call (0 for none).
+	 */
+	public SyntheticMethodGenerator setVarargsEvery(int every) {
+		this.varargsEvery = every;
+		return this;
+	}
+	
+	/**
+	 * Generates the method <code>public static void generated()</code> in a new class.
+	 * @param pool the pool the new class is made in.
+	 * @param className the name of the new class.
+	 * @return the generated method.
+	 */
+	public CtMethod generate(ClassPool pool, String className) throws CannotCompileException, NotFoundException {
+		CtClass clazz = pool.makeClass(className);
+		ConstPool cp = clazz.getClassFile().getConstPool();
+		int maxLocals = FIRST_INT + nbIntLocals;
+		
+		// the biggest statement is the first one, as every optional part is triggered by k == 0
+		Bytecode scratch = new Bytecode(new ConstPool(className), 0, maxLocals);
+		addStatement(scratch, 0);
+		int margin = scratch.currentPc() + 4 * switchDepth + 16;
+		
+		Bytecode code = new Bytecode(cp, 0, maxLocals);
+		code.addLdc("text");
+		code.addAstore(TEXT);
+		int textStart = code.currentPc();
+		code.addInvokestatic("java.lang.System", "currentTimeMillis", "()J");
+		code.addLstore(TIME);
+		int timeStart = code.currentPc();
+		code.addDconst(1);
+		code.addDstore(RATIO);
+		int ratioStart = code.currentPc();
+		int[] intStarts = new int[nbIntLocals];
+		for(int i = 0; i < nbIntLocals; i++) {
+			code.addIconst(i % 6);
+			code.addIstore(FIRST_INT + i);
+			intStarts[i] = code.currentPc();
+		}
+		for(int k = 0; k < maxStatements && code.currentPc() + margin < maxCodeLength; k++)
+			addStatement(code, k);
+		code.addOpcode(Opcode.RETURN);
+		code.setMaxStack(Math.max(code.getMaxStack(), 8));
+		
+		CodeAttribute codeAttribute = code.toCodeAttribute();
+		int end = codeAttribute.getCodeLength();
+		LocalVariableAttribute lva = new LocalVariableAttribute(cp);
+		lva.addEntry(textStart, end - textStart, cp.addUtf8Info("text"), cp.addUtf8Info("Ljava/lang/String;"), TEXT);
+		lva.addEntry(timeStart, end - timeStart, cp.addUtf8Info("time"), cp.addUtf8Info("J"), TIME);
+		lva.addEntry(ratioStart, end - ratioStart, cp.addUtf8Info("ratio"), cp.addUtf8Info("D"), RATIO);
+		for(int i = 0; i < nbIntLocals; i++)
+			lva.addEntry(intStarts[i], end - intStarts[i], cp.addUtf8Info("i" + i), cp.addUtf8Info("I"), FIRST_INT + i);
+		codeAttribute.getAttributes().add(lva);
+		
+		MethodInfo methodInfo = new MethodInfo(cp, "generated", "()V");
+		methodInfo.setAccessFlags(AccessFlag.PUBLIC | AccessFlag.STATIC);
+		methodInfo.setCodeAttribute(codeAttribute);
+		clazz.getClassFile().addMethod(methodInfo);
+		return clazz.getDeclaredMethod("generated");
+	}
+	
+	private void addStatement(Bytecode code, int k) {
+		if(switchEvery > 0 && k % switchEvery == 0)
+			addSwitch(code, k, switchDepth);
+		else if(tryCatchEvery > 0 && k % tryCatchEvery == 0)
+			addTryCatch(code, k);
+		else addIntStatement(code, k);
+		if(longDoubleEvery > 0 && k % longDoubleEvery == 0)
+			addLongDouble(code);
+		if(varargsEvery > 0 && k % varargsEvery == 0)
+			addVarargs(code, k);
+	}
+	
+	private int intLocal(int k, int n) {
+		return FIRST_INT + (int) ((k * (long) n) % nbIntLocals);
+	}
+	
+	// i<c> = i<a> + i<b>; i<d>++;
+	private void addIntStatement(Bytecode code, int k) {
+		code.addIload(intLocal(k, 1));
+		code.addIload(intLocal(k, 3));
+		code.addOpcode(Opcode.IADD);
+		code.addIstore(intLocal(k, 5));
+		int incremented = intLocal(k, 7);
+		if(incremented < 256) {
+			code.addOpcode(Opcode.IINC);
+			code.add(incremented, 1);
+		} else {
+			code.addOpcode(Opcode.WIDE);
+			code.addOpcode(Opcode.IINC);
+			code.addIndex(incremented);
+			code.addIndex(1);
+		}
+	}
+	
+	// switch(i<a>) { case 0: case 1: case 2: <nested switch or statement>; break; default: <statement>; }
+	private void addSwitch(Bytecode code, int k, int depth) {
+		code.addIload(intLocal(k, 11));
+		int start = code.currentPc();
+		code.addOpcode(Opcode.TABLESWITCH);
+		while(code.currentPc() % 4 != 0)
+			code.add(0);
+		int defaultOffset = code.currentPc();
+		code.add32bit(0);
+		code.add32bit(0);
+		code.add32bit(SWITCH_CASES - 1);
+		int caseOffsets = code.currentPc();
+		for(int i = 0; i < SWITCH_CASES; i++)
+			code.add32bit(0);
+		List<Integer> gotos = new ArrayList<Integer>();
+		for(int i = 0; i < SWITCH_CASES; i++) {
+			code.write32bit(caseOffsets + 4 * i, code.currentPc() - start);
+			if(depth > 1)
+				addSwitch(code, k + i + 1, depth - 1);
+			else addIntStatement(code, k + i);
+			gotos.add(code.currentPc());
+			code.addOpcode(Opcode.GOTO);
+			code.addIndex(0);
+		}
+		code.write32bit(defaultOffset, code.currentPc() - start);
+		addIntStatement(code, k + SWITCH_CASES);
+		for(int pc : gotos)
+			code.write16bit(pc + 1, code.currentPc() - pc);
+	}
+	
+	// try { <statement> } catch(RuntimeException e) { i<a> = 0; }
+	private void addTryCatch(Bytecode code, int k) {
+		int start = code.currentPc();
+		addIntStatement(code, k);
+		int end = code.currentPc();
+		code.addOpcode(Opcode.GOTO);
+		code.addIndex(0);
+		int handler = code.currentPc();
+		code.setStackDepth(1);
+		code.addOpcode(Opcode.POP);
+		code.addIconst(0);
+		code.addIstore(intLocal(k, 13));
+		code.write16bit(end + 1, code.currentPc() - end);
+		code.addExceptionHandler(start, end, handler, "java.lang.RuntimeException");
+	}
+	
+	// time = Math.max(time, time + 1); ratio = ratio * 2 + time;
+	private void addLongDouble(Bytecode code) {
+		code.addLload(TIME);
+		code.addLload(TIME);
+		code.addOpcode(Opcode.LCONST_1);
+		code.addOpcode(Opcode.LADD);
+		code.addInvokestatic("java.lang.Math", "max", "(JJ)J");
+		code.addLstore(TIME);
+		code.addDload(RATIO);
+		code.addDconst(2);
+		code.addOpcode(Opcode.DMUL);
+		code.addLload(TIME);
+		code.addOpcode(Opcode.L2D);
+		code.addOpcode(Opcode.DADD);
+		code.addDstore(RATIO);
+	}
+	
+	// text = String.format(text, i<a>, time);
+	private void addVarargs(Bytecode code, int k) {
+		code.addAload(TEXT);
+		code.addIconst(2);
+		code.addAnewarray("java.lang.Object");
+		code.addOpcode(Opcode.DUP);
+		code.addIconst(0);
+		code.addIload(intLocal(k, 17));
+		code.addInvokestatic("java.lang.Integer", "valueOf", "(I)Ljava/lang/Integer;");
+		code.addOpcode(Opcode.AASTORE);
+		code.addOpcode(Opcode.DUP);
+		code.addIconst(1);
+		code.addLload(TIME);
+		code.addInvokestatic("java.lang.Long", "valueOf", "(J)Ljava/lang/Long;");
+		code.addOpcode(Opcode.AASTORE);
+		code.addInvokestatic("java.lang.String", "format", "(Ljava/lang/String;[Ljava/lang/Object;)Ljava/lang/String;");
+		code.addAstore(TEXT);
+	}
+}
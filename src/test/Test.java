@@ -23,15 +23,71 @@ import static test.CommonTests.assertDeepEquals;
 import static test.CommonTests.getCtClass;
 import static test.CommonTests.getMethod;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarOutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
 
+import javassist.ClassPool;
+import javassist.CtBehavior;
 import javassist.CtClass;
 import javassist.CtMethod;
+import javassist.LoaderClassPath;
+import javassist.NotFoundException;
+import javassist.bytecode.AccessFlag;
 import javassist.bytecode.BadBytecode;
+import javassist.bytecode.Bytecode;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.LocalVariableAttribute;
+import javassist.bytecode.MethodInfo;
+import javassist.bytecode.Opcode;
+import bytecodeparser.CodeParser;
+import bytecodeparser.ConstPoolCache;
+import bytecodeparser.ConstPoolCache.MethodRef;
+import bytecodeparser.Context;
+import bytecodeparser.OpHandler;
+import bytecodeparser.analysis.ControlFlowGraph;
+import bytecodeparser.analysis.LocalVariable;
+import bytecodeparser.analysis.LocalVariableIndex;
+import bytecodeparser.analysis.LocalVariableType;
+import bytecodeparser.analysis.Opcodes;
+import bytecodeparser.analysis.cache.AnalysisCache;
+import bytecodeparser.analysis.cache.MethodSummary;
+import bytecodeparser.analysis.decoders.DecodedBranchOp;
 import bytecodeparser.analysis.decoders.DecodedMethodInvocationOp;
+import bytecodeparser.analysis.opcodes.MethodInvocationOpcode;
+import bytecodeparser.analysis.opcodes.Op;
+import bytecodeparser.analysis.stack.AnalysisListener;
+import bytecodeparser.analysis.stack.BatchAnalyzer;
+import bytecodeparser.analysis.stack.ClassAnalyzer;
+import bytecodeparser.analysis.stack.FrameEditor;
+import bytecodeparser.analysis.stack.Constant.IntegerConstant;
+import bytecodeparser.analysis.stack.Constant.LongConstant;
+import bytecodeparser.analysis.stack.Stack;
+import bytecodeparser.analysis.stack.Stack.StackElementLength;
 import bytecodeparser.analysis.stack.StackAnalyzer;
 import bytecodeparser.analysis.stack.StackAnalyzer.Frame;
 import bytecodeparser.analysis.stack.StackAnalyzer.Frames;
+import bytecodeparser.analysis.stack.StackAnalyzer.Frames.FrameIterator;
+import bytecodeparser.analysis.stack.StackMapGenerator;
+import bytecodeparser.analysis.stack.StackElement;
+import bytecodeparser.analysis.stack.TOP;
+import bytecodeparser.analysis.stack.Whatever;
+import bytecodeparser.stream.ClassFileHandler;
+import bytecodeparser.stream.ClassFileReader;
+import bytecodeparser.stream.JarScanner;
+import bytecodeparser.stream.MethodCode;
 
 public class Test {
 	@org.junit.Test
@@ -127,6 +183,37 @@ public class Test {
 		}
 	}
 	
+	@org.junit.Test
+	public void simpleSubjectsConditionalArguments() throws BadBytecode {
+		System.out.println("simpleSubjectsConditionalArguments");
+		CtClass clazz = getCtClass("test.subjects.SimpleSubjects");
+		CtMethod method = getMethod(clazz, "conditionalArguments");
+		StackAnalyzer analyzer = new StackAnalyzer(method);
+		Frames frames = analyzer.analyze();
+		int invocations = 0;
+		for(Frame frame : frames) {
+			if(frame.decodedOp instanceof DecodedMethodInvocationOp) {
+				DecodedMethodInvocationOp dmio = (DecodedMethodInvocationOp) frame.decodedOp;
+				if(dmio.getName().equals("classic")) {
+					String[] names = DecodedMethodInvocationOp.resolveParametersNames(frame, false);
+					switch(invocations++) {
+						case 0: // both branches push the same local variable
+							assertDeepEquals(names, new String[] {"subject", "myInt", "date"});
+							break;
+						case 1: // the branches push different values, merged at the join
+							assertDeepEquals(names, new String[] {"subject", null, "date"});
+							break;
+						default:
+							throw new RuntimeException("unexpected invocation at index " + frame.index);
+					}
+					System.out.println(dmio.getName() + " -> " + Arrays.toString(names));
+				}
+			}
+		}
+		if(invocations != 2)
+			throw new RuntimeException("expected 2 invocations, found " + invocations);
+	}
+	
 	@org.junit.Test
 	public void simpleSubjectsVarargs() throws BadBytecode {
 		System.out.println("simpleSubjectsVarargs");
@@ -291,4 +378,696 @@ public class Test {
 			}
 		}
 	}
+	
+	@org.junit.Test
+	public void controlFlowGraph() throws BadBytecode {
+		System.out.println("controlFlowGraph");
+		CtClass clazz = getCtClass("test.subjects.SimpleSubjects");
+		CtMethod method = getMethod(clazz, "conditionalArguments");
+		ControlFlowGraph graph = new Context(method).getControlFlowGraph();
+		int forks = 0;
+		for(int block = 0; block < graph.getNbBlocks(); block++) {
+			if(graph.getNbSuccessors(block) == 2)
+				forks++;
+			for(int i = 0; i < graph.getNbSuccessors(block); i++) {
+				int successor = graph.getSuccessor(block, i);
+				boolean found = false;
+				for(int j = 0; j < graph.getNbPredecessors(successor); j++)
+					found |= graph.getPredecessor(successor, j) == block;
+				if(!found)
+					throw new RuntimeException("block " + block + " is not a predecessor of " + successor);
+			}
+		}
+		if(graph.getNbBlocks() != 7 || forks != 2 || graph.getBlockAt(0) != 0 || graph.getNbPredecessors(0) != 0)
+			throw new RuntimeException("unexpected graph: " + graph);
+	}
+	
+	@org.junit.Test
+	public void batchAnalyzer() throws InterruptedException, IOException {
+		System.out.println("batchAnalyzer");
+		final AtomicInteger analyzed = new AtomicInteger();
+		final AtomicInteger errors = new AtomicInteger();
+		new BatchAnalyzer(ClassPool.getDefault(), Arrays.asList("test.subjects.SimpleSubjects", "test.subjects.WideTestSubject")).setNbThreads(2).setClassesPerPool(1).analyze(new BatchAnalyzer.Callback() {
+			@Override
+			public void onFrames(CtBehavior behavior, Frames frames) {
+				analyzed.incrementAndGet();
+			}
+			@Override
+			public void onError(String className, CtBehavior behavior, Exception e) {
+				e.printStackTrace();
+				errors.incrementAndGet();
+			}
+		});
+		int expected = getCtClass("test.subjects.SimpleSubjects").getDeclaredBehaviors().length + getCtClass("test.subjects.WideTestSubject").getDeclaredBehaviors().length;
+		if(errors.get() > 0 || analyzed.get() != expected)
+			throw new RuntimeException(analyzed + " behaviors analyzed instead of " + expected + ", " + errors + " errors");
+		// a failing callback stops the analysis
+		final IllegalStateException failure = new IllegalStateException("callback failure");
+		try {
+			new BatchAnalyzer(ClassPool.getDefault(), Arrays.asList("test.subjects.SimpleSubjects")).analyze(new BatchAnalyzer.Callback() {
+				@Override
+				public void onFrames(CtBehavior behavior, Frames frames) {
+					throw failure;
+				}
+				@Override
+				public void onError(String className, CtBehavior behavior, Exception e) {
+				}
+			});
+			throw new RuntimeException("the failure of the callback was not thrown");
+		} catch (IllegalStateException e) {
+			if(e != failure)
+				throw e;
+		}
+	}
+	
+	@org.junit.Test
+	public void lazyStacks() throws BadBytecode {
+		System.out.println("lazyStacks");
+		CtClass clazz = getCtClass("test.subjects.SimpleSubjects");
+		for(CtMethod method : clazz.getDeclaredMethods()) {
+			Frames eager = new StackAnalyzer(method).analyze();
+			Frames lazy = new StackAnalyzer(method).setLazyStacks(true).analyze();
+			for(int i = 0; i < eager.frames.length; i++) {
+				if(eager.frames[i] == null || !eager.frames[i].isAccessible)
+					continue;
+				Frame frame = lazy.frames[i];
+				if(frame.stackBefore != null && frame.stackBefore != frame.getStackBefore())
+					throw new RuntimeException("stacks of frame " + i + " of " + method.getName() + " rebuilt more than once");
+				if(!eager.frames[i].toString().equals(frame.toString()))
+					throw new RuntimeException(method.getName() + ": " + frame + " does not equal " + eager.frames[i]);
+			}
+		}
+	}
+	
+	@org.junit.Test
+	@SuppressWarnings("deprecation")
+	public void stackCopyOnWrite() {
+		System.out.println("stackCopyOnWrite");
+		Stack stack = new Stack(1);
+		StackElement first = new Whatever();
+		StackElement second = new Whatever();
+		stack.push(first).push2(second);
+		Stack copy = stack.copy();
+		copy.pop2();
+		copy.push(second);
+		if(stack.size() != 3 || stack.getFromTop(1) != second || !(stack.getFromTop(0) instanceof TOP))
+			throw new RuntimeException("original stack altered by its copy: " + stack);
+		if(copy.size() != 2 || copy.peek() != second || copy.getFromTop(1) != first)
+			throw new RuntimeException("unexpected copy: " + copy);
+		if(stack.stack.size() != 3 || stack.stack.get(2) != first)
+			throw new RuntimeException("list view does not match the stack: " + stack.stack);
+		// the inherited methods of the view go through the stack too
+		if(!new ArrayList<StackElement>(stack.stack).equals(Arrays.asList(TOP.INSTANCE, second, first)) || stack.stack.subList(1, 3).indexOf(first) != 1)
+			throw new RuntimeException("list view does not read the stack: " + stack.stack);
+		stack.stack.add(0, first);
+		if(stack.peek() != first || stack.size() != 4)
+			throw new RuntimeException("list view does not write through: " + stack);
+		// peek2 returns the element under the top word, that is the value of a two-words element
+		Stack words = new Stack().push(first).push(new Whatever()).push2(second);
+		if(words.peek2() != second || words.peek(StackElementLength.DOUBLE) != second)
+			throw new RuntimeException("peek2 does not return the second word from the top: " + words.peek2());
+	}
+	
+	@org.junit.Test
+	public void sharedStackElements() {
+		System.out.println("sharedStackElements");
+		Stack stack = new Stack().push(IntegerConstant.valueOf(3)).push2(LongConstant.valueOf(1));
+		if(stack.getFromTop(0) != TOP.INSTANCE || stack.getFromTop(1) != LongConstant.valueOf(1) || stack.getFromTop(2) != IntegerConstant.valueOf(3) || Whatever.INSTANCE.copy() != Whatever.INSTANCE)
+			throw new RuntimeException("stack elements are not shared: " + stack);
+	}
+	
+	@org.junit.Test
+	public void streamingParser() throws IOException, BadBytecode {
+		System.out.println("streamingParser");
+		final List<String> streamed = new ArrayList<String>();
+		ClassFileReader reader = new ClassFileReader(ByteBuffer.wrap(readSubject("SimpleSubjects")));
+		reader.accept(new ClassFileHandler() {
+			@Override
+			public boolean startMethod(MethodCode method) {
+				return method.nameEquals("conditionalArguments");
+			}
+			@Override
+			public void handle(Op op, int index, MethodCode method) {
+				streamed.add(index + ":" + op.getName());
+				if(op instanceof MethodInvocationOpcode && method.reader.memberNameEquals(method.u16bitAt(index + 1), "classic"))
+					streamed.add(method.reader.getMemberName(method.u16bitAt(index + 1)) + method.reader.getMemberDescriptor(method.u16bitAt(index + 1)));
+			}
+		});
+		final List<String> parsed = new ArrayList<String>();
+		final CodeParser parser = new CodeParser(getMethod(getCtClass("test.subjects.SimpleSubjects"), "conditionalArguments"));
+		parser.parse(new OpHandler() {
+			@Override
+			public void handle(Op op, int index) {
+				parsed.add(index + ":" + op.getName());
+				if(op instanceof MethodInvocationOpcode) {
+					DecodedMethodInvocationOp decoded = (DecodedMethodInvocationOp) op.decode(parser.context, index);
+					if(decoded.getName().equals("classic"))
+						parsed.add(decoded.getName() + decoded.getDescriptor());
+				}
+			}
+		});
+		if(!"test.subjects.SimpleSubjects".equals(reader.getClassName()) || !streamed.equals(parsed))
+			throw new RuntimeException(streamed + " does not equal " + parsed);
+	}
+	
+	@org.junit.Test
+	public void jarScanner() throws IOException, BadBytecode {
+		System.out.println("jarScanner");
+		File jar = File.createTempFile("subjects", ".jar");
+		jar.deleteOnExit();
+		JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+		out.putNextEntry(new ZipEntry("test/subjects/SimpleSubjects.class"));
+		out.write(readSubject("SimpleSubjects"));
+		byte[] stored = readSubject("WideTestSubject");
+		ZipEntry storedEntry = new ZipEntry("test/subjects/WideTestSubject.class");
+		CRC32 crc = new CRC32();
+		crc.update(stored);
+		storedEntry.setMethod(ZipEntry.STORED);
+		storedEntry.setSize(stored.length);
+		storedEntry.setCrc(crc.getValue());
+		out.putNextEntry(storedEntry);
+		out.write(stored);
+		out.close();
+		final List<String> scanned = new ArrayList<String>();
+		new JarScanner(jar).scan(new JarScanner.EntryHandler() {
+			@Override
+			public boolean accept(String className) {
+				return className.startsWith("test.subjects.");
+			}
+			@Override
+			public void handle(String className, ByteBuffer classFile) throws BadBytecode {
+				if(!new ClassFileReader(classFile).getClassName().equals(className))
+					throw new RuntimeException("bad class file for " + className);
+				try {
+					CtClass ctClass = JarScanner.toCtClass(new ClassPool(true), classFile);
+					new StackAnalyzer(ctClass.getDeclaredMethods()[0]).analyze();
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+				scanned.add(className);
+			}
+		});
+		if(!scanned.equals(Arrays.asList("test.subjects.SimpleSubjects", "test.subjects.WideTestSubject")))
+			throw new RuntimeException("unexpected scanned classes " + scanned);
+	}
+	
+	@org.junit.Test
+	public void analysisCache() throws IOException, BadBytecode {
+		System.out.println("analysisCache");
+		File directory = File.createTempFile("cache", "");
+		directory.delete();
+		CtMethod method = getMethod(getCtClass("test.subjects.SimpleSubjects"), "conditionalArguments");
+		MethodSummary analyzed = new AnalysisCache(directory, 1 << 20).analyze(method);
+		AnalysisCache cache = new AnalysisCache(directory, 1 << 20);
+		MethodSummary cached = cache.analyze(method);
+		for(File file : directory.listFiles())
+			file.delete();
+		directory.delete();
+		if(cache.getHits() != 1 || !analyzed.toString().equals(cached.toString()))
+			throw new RuntimeException("summary not read from the cache: " + cached + " instead of " + analyzed);
+		assertDeepEquals(cached.invocations[1].getParameterNames(), new String[] { "subject", "myInt", "date" });
+	}
+	
+	@org.junit.Test
+	public void localVariableIndex() {
+		System.out.println("localVariableIndex");
+		for(String className : new String[] { "test.subjects.SimpleSubjects", "test.subjects.WideTestSubject" }) {
+			for(CtBehavior behavior : getCtClass(className).getDeclaredBehaviors()) {
+				Context context = new Context(behavior);
+				LocalVariableIndex index = context.getLocalVariableIndex();
+				int codeLength = behavior.getMethodInfo().getCodeAttribute().getCodeLength();
+				int maxLocals = behavior.getMethodInfo().getCodeAttribute().getMaxLocals();
+				for(int slot = 0; slot <= maxLocals; slot++) {
+					for(int i = 0; i <= codeLength; i++) {
+						LocalVariable expected = LocalVariable.getLocalVariable(slot, i, context.localVariables);
+						if(index.get(slot, i) != expected)
+							throw new RuntimeException(behavior.getLongName() + ": slot " + slot + " at " + i + " gives " + index.get(slot, i) + " instead of " + expected);
+					}
+				}
+			}
+		}
+	}
+	
+	@org.junit.Test
+	public void localVariablesShiftOnInsertion() throws NotFoundException, BadBytecode {
+		System.out.println("localVariablesShiftOnInsertion");
+		ClassPool pool = new ClassPool(true);
+		pool.appendClassPath(new LoaderClassPath(Test.class.getClassLoader()));
+		CtMethod method = getMethod(pool.get("test.subjects.SimpleSubjects"), "conditionalArguments");
+		StackAnalyzer analyzer = new StackAnalyzer(method);
+		FrameIterator iterator = analyzer.analyze().iterator();
+		for(int i = 0; i < 5; i++)
+			iterator.next();
+		iterator.insert(new byte[] { 0, 0, 0 }, false);
+		assertShiftedLikeTable(analyzer.context);
+		// exclusive gaps at the start and at the end of a variable
+		Context context = new Context(getMethod(pool.get("test.subjects.SimpleSubjects"), "simpleWithConditionals"));
+		LocalVariable variable = null;
+		for(LocalVariable lv : context.localVariables.values())
+			if(lv.getStart() > 0 && (variable == null || lv.getStart() > variable.getStart()))
+				variable = lv;
+		context.iterator.insertGapAt(variable.getStart(), 3, true);
+		assertShiftedLikeTable(context);
+		context.iterator.insertGapAt(variable.getEnd(), 3, true);
+		assertShiftedLikeTable(context);
+	}
+	
+	private static void assertShiftedLikeTable(Context context) {
+		LocalVariableAttribute lva = (LocalVariableAttribute) context.behavior.getMethodInfo().getCodeAttribute().getAttribute(LocalVariableAttribute.tag);
+		for(LocalVariable lv : context.localVariables.values())
+			if(lv.getStart() != lva.startPc(lv.index) || lv.getEnd() != lva.startPc(lv.index) + lva.codeLength(lv.index))
+				throw new RuntimeException(lv + " was not shifted like the LocalVariableTable");
+	}
+	
+	@org.junit.Test
+	public void opcodeNames() {
+		System.out.println("opcodeNames");
+		if(!"INVOKEVIRTUAL".equals(Opcodes.findOpName(javassist.bytecode.Opcode.INVOKEVIRTUAL)) || !"UNKNOWN_OP".equals(Opcodes.findOpName(300)))
+			throw new RuntimeException("bad opcode names");
+		for(int code = 0; code <= javassist.bytecode.Opcode.JSR_W; code++)
+			if(!"UNKNOWN_OP".equals(Opcodes.findOpName(code)) && Opcodes.findOpCode(Opcodes.findOpName(code).toLowerCase()) != code)
+				throw new RuntimeException("bad reverse lookup for " + Opcodes.findOpName(code));
+		if(Opcodes.findOpCode("notAnOpcode") != -1)
+			throw new RuntimeException("unknown mnemonic found");
+	}
+	
+	@org.junit.Test
+	public void analysisListener() throws BadBytecode {
+		System.out.println("analysisListener");
+		final List<String> events = new ArrayList<String>();
+		CtMethod method = getMethod(getCtClass("test.subjects.SimpleSubjects"), "conditionalArguments");
+		Frames frames = new StackAnalyzer(method).setLazyStacks(true).setListener(new AnalysisListener() {
+			@Override
+			public void beforeFrame(Frame frame, Stack stack) {
+				events.add("before " + frame.index + " " + stack);
+			}
+			@Override
+			public void afterFrame(Frame frame, Stack stack) {
+				events.add("after " + frame.index + " " + stack);
+			}
+		}).analyze();
+		List<String> expected = new ArrayList<String>();
+		for(Frame frame : frames) {
+			expected.add("before " + frame.index + " " + frame.getStackBefore());
+			expected.add("after " + frame.index + " " + frame.getStackAfter());
+		}
+		if(!events.containsAll(expected) || events.size() < expected.size())
+			throw new RuntimeException(events + " does not match the frames " + expected);
+	}
+	
+	@org.junit.Test
+	public void syntheticMethods() throws Exception {
+		System.out.println("syntheticMethods");
+		ClassPool pool = new ClassPool(true);
+		int[] lengths = { 4096, 16384, SyntheticMethodGenerator.MAX_CODE_LENGTH };
+		int previousFrames = 0;
+		for(int i = 0; i < lengths.length; i++) {
+			CtMethod method = new SyntheticMethodGenerator().setMaxCodeLength(lengths[i]).setNbIntLocals(300)
+				.setSwitches(20, 3).setTryCatchEvery(7).setLongDoubleEvery(5).setVarargsEvery(11)
+				.generate(pool, "test.generated.Synthetic" + i);
+			int codeLength = method.getMethodInfo().getCodeAttribute().getCodeLength();
+			if(codeLength > lengths[i] || codeLength < lengths[i] / 2)
+				throw new RuntimeException("the method is " + codeLength + " bytes long instead of about " + lengths[i]);
+			Frames frames = new StackAnalyzer(method).analyze();
+			int varargs = 0;
+			for(FrameIterator iterator = frames.iterator(); iterator.hasNext(); ) {
+				Frame frame = iterator.next();
+				iterator.lookAhead();
+				if(!frame.isAccessible)
+					throw new RuntimeException("frame at " + frame.index + " should be accessible");
+				if(frame.decodedOp instanceof DecodedMethodInvocationOp && ((DecodedMethodInvocationOp) frame.decodedOp).getName().equals("format")) {
+					String[] names = DecodedMethodInvocationOp.resolveParametersNames(frame, true);
+					if(names.length != 3 || !"text".equals(names[0]) || !names[1].startsWith("i") || !"time".equals(names[2]))
+						throw new RuntimeException("wrong varargs resolution: " + Arrays.toString(names));
+					varargs++;
+				}
+			}
+			if(varargs == 0)
+				throw new RuntimeException("no varargs call found");
+			if(frames.size() <= previousFrames)
+				throw new RuntimeException(frames.size() + " frames for " + codeLength + " bytes, no more than for a smaller method");
+			previousFrames = frames.size();
+		}
+	}
+	
+	@org.junit.Test
+	public void classAnalyzer() throws BadBytecode {
+		System.out.println("classAnalyzer");
+		CtClass clazz = getCtClass("test.subjects.SimpleSubjects");
+		ClassAnalyzer analyzer = new ClassAnalyzer(clazz);
+		Map<CtBehavior, Frames> all = analyzer.analyze();
+		if(all.isEmpty())
+			throw new RuntimeException("no behavior analyzed");
+		for(Map.Entry<CtBehavior, Frames> entry : all.entrySet()) {
+			Frames expected = new StackAnalyzer(entry.getKey()).analyze();
+			Frames actual = entry.getValue();
+			if(actual.frames.length != expected.frames.length)
+				throw new RuntimeException("wrong frames for " + entry.getKey().getLongName());
+			for(int i = 0; i < expected.frames.length; i++) {
+				Frame e = expected.frames[i], a = actual.frames[i];
+				if(e == null ? a != null : a == null || !e.toString().equals(a.toString()))
+					throw new RuntimeException(entry.getKey().getLongName() + " at " + i + ": expected " + e + " but got " + a);
+			}
+		}
+	}
+	
+	@org.junit.Test
+	public void constPoolShapes() {
+		System.out.println("constPoolShapes");
+		ConstPool constPool = new ConstPool("test.generated.Shapes");
+		int methodRef = constPool.addMethodrefInfo(constPool.addClassInfo("does.not.Exist"), "m", "(JLdoes/not/Missing;[D)J");
+		int fieldRef = constPool.addFieldrefInfo(constPool.addClassInfo("does.not.Exist"), "f", "D");
+		ConstPoolCache cache = new ConstPoolCache(constPool, new ClassPool(false));
+		MethodRef ref = cache.getMethodRef(methodRef);
+		assertDeepEquals(ref.parameterDescriptors, new String[] { "J", "Ldoes/not/Missing;", "[D" });
+		if(!Arrays.equals(ref.pops, new StackElementLength[] { StackElementLength.ONE, StackElementLength.ONE, StackElementLength.DOUBLE }))
+			throw new RuntimeException("wrong pops " + Arrays.toString(ref.pops));
+		if(ref.returnLength != StackElementLength.DOUBLE || cache.getMethodRef(methodRef) != ref)
+			throw new RuntimeException("wrong method ref " + ref.descriptor);
+		if(cache.getFieldRef(fieldRef).length != StackElementLength.DOUBLE || !cache.getFieldRef(fieldRef).primitive)
+			throw new RuntimeException("wrong field ref");
+		try {
+			ref.getParameterTypes();
+			throw new RuntimeException("the types should not be found");
+		} catch (NotFoundException e) {
+			// expected
+		}
+	}
+	
+	@org.junit.Test
+	public void descriptorOnly() throws Exception {
+		System.out.println("descriptorOnly");
+		ClassPool pool = new ClassPool(true);
+		CtClass clazz = pool.makeClass("test.generated.PartialClasspath");
+		Bytecode code = new Bytecode(clazz.getClassFile().getConstPool(), 4, 2);
+		code.addOpcode(Opcode.ACONST_NULL);
+		code.addLconst(1);
+		code.addInvokestatic("does.not.Exist", "m", "(Ldoes/not/Missing;J)J");
+		code.addLstore(0);
+		code.addOpcode(Opcode.RETURN);
+		MethodInfo methodInfo = new MethodInfo(clazz.getClassFile().getConstPool(), "partial", "()V");
+		methodInfo.setAccessFlags(AccessFlag.PUBLIC | AccessFlag.STATIC);
+		methodInfo.setCodeAttribute(code.toCodeAttribute());
+		clazz.getClassFile().addMethod(methodInfo);
+		CtMethod method = clazz.getDeclaredMethod("partial");
+		try {
+			new StackAnalyzer(method).analyze();
+			throw new IllegalStateException("the analysis should need does.not.Missing");
+		} catch (RuntimeException e) {
+			if(e instanceof IllegalStateException)
+				throw e;
+		}
+		Frames frames = new StackAnalyzer(method).setDescriptorOnly(true).analyze();
+		Frame invocation = frames.frames[2];
+		DecodedMethodInvocationOp decoded = (DecodedMethodInvocationOp) invocation.decodedOp;
+		if(decoded.getNbParameters() != 2 || invocation.getStackAfter().size() != 2)
+			throw new RuntimeException("wrong invocation " + invocation);
+		try {
+			decoded.getParameterTypes();
+			throw new IllegalStateException("the parameter types should not be resolved");
+		} catch (RuntimeException e) {
+			if(e instanceof IllegalStateException)
+				throw e;
+		}
+	}
+	
+	@org.junit.Test
+	public void localVariableTypes() {
+		System.out.println("localVariableTypes");
+		String[][] expected = {
+			{ "I", "int", "int", "true", "0" },
+			{ "[[J", "long[][]", "long", "true", "2" },
+			{ "Ljava/lang/String;", "java.lang.String", "java.lang.String", "false", "0" },
+			{ "[Ljava/util/Map$Entry;", "Entry[]", "Entry", "false", "1" }
+		};
+		for(String[] e : expected) {
+			LocalVariableType type = LocalVariableType.parse(e[0]);
+			assertDeepEquals(new String[] { type.signature, type.typeName, type.shortTypeName, "" + type.isPrimitive, "" + type.dimensions }, e);
+			if(LocalVariableType.parse(new String(e[0])) != type)
+				throw new RuntimeException(e[0] + " is not interned");
+		}
+		for(String wrong : new String[] { "", "[", "X", "Ljava/lang/String", "II" }) {
+			try {
+				LocalVariableType.parse(wrong);
+				throw new IllegalStateException("'" + wrong + "' should not be parsed");
+			} catch (IllegalStateException e) {
+				throw e;
+			} catch (RuntimeException e) {
+				// expected
+			}
+		}
+	}
+	
+	@org.junit.Test
+	public void frameEditor() throws Exception {
+		System.out.println("frameEditor");
+		ClassPool pool = new ClassPool(true);
+		pool.appendClassPath(new LoaderClassPath(Test.class.getClassLoader()));
+		CtClass clazz = pool.get("test.subjects.SimpleSubjects");
+		for(String name : new String[] { "simpleWithConditionals", "exceptions", "tableswitchBlock", "lookupswitchBlock" }) {
+			CtMethod method = getMethod(clazz, name);
+			CodeAttribute codeAttribute = method.getMethodInfo().getCodeAttribute();
+			StackAnalyzer analyzer = new StackAnalyzer(method);
+			Frames frames = analyzer.analyze();
+			List<String> invocations = describeInvocations(frames);
+			List<Frame> all = new ArrayList<Frame>();
+			List<Integer> opcodes = new ArrayList<Integer>();
+			FrameEditor editor = frames.editor();
+			for(Frame frame : frames) {
+				all.add(frame);
+				opcodes.add(codeAttribute.getCode()[frame.index] & 0xff);
+				editor.insertBefore(frame, new byte[] { Opcode.ICONST_0, Opcode.POP });
+				if(frame.decodedOp instanceof DecodedMethodInvocationOp)
+					editor.insertAfter(frame, new byte[] { Opcode.NOP });
+			}
+			editor.apply();
+			codeAttribute.setMaxStack(codeAttribute.getMaxStack() + 1);
+			for(int i = 0; i < all.size(); i++)
+				if((codeAttribute.getCode()[all.get(i).index] & 0xff) != opcodes.get(i))
+					throw new RuntimeException(name + ": frame " + i + " was not moved to its instruction");
+			LocalVariableAttribute lva = (LocalVariableAttribute) codeAttribute.getAttribute(LocalVariableAttribute.tag);
+			for(LocalVariable lv : analyzer.context.localVariables.values())
+				if(lv.getStart() != lva.startPc(lv.index) || lv.getEnd() != lva.startPc(lv.index) + lva.codeLength(lv.index))
+					throw new RuntimeException(name + ": " + lv + " was not shifted like the LocalVariableTable");
+			List<String> reanalyzed = describeInvocations(new StackAnalyzer(method).analyze());
+			if(!invocations.equals(reanalyzed))
+				throw new RuntimeException(name + ": " + reanalyzed + " instead of " + invocations);
+		}
+		final byte[] bytes = clazz.toBytecode();
+		Class<?> edited = new ClassLoader(Test.class.getClassLoader()) {
+			Class<?> define() {
+				return defineClass("test.subjects.SimpleSubjects", bytes, 0, bytes.length);
+			}
+		}.define();
+		Object subject = edited.getDeclaredConstructor().newInstance();
+		edited.getMethod("simpleWithConditionals", String.class, int.class).invoke(subject, "", 1);
+		edited.getMethod("exceptions").invoke(subject);
+		for(int i = 0; i < 8; i++) {
+			edited.getMethod("tableswitchBlock", int.class).invoke(subject, i);
+			edited.getMethod("lookupswitchBlock", int.class).invoke(subject, i);
+		}
+		// wide loads, stores and iinc, with and without a LocalVariableTable
+		for(int i = 0; i < 2; i++) {
+			CtMethod method = new SyntheticMethodGenerator().setMaxCodeLength(4096).setNbIntLocals(300).setSwitches(10, 1)
+				.generate(pool, "test.generated.WideLocals" + i);
+			CodeAttribute codeAttribute = method.getMethodInfo().getCodeAttribute();
+			if(i == 1)
+				codeAttribute.getAttributes().remove(codeAttribute.getAttribute(LocalVariableAttribute.tag));
+			int maxLocals = codeAttribute.getMaxLocals();
+			boolean generated = new StackMapGenerator(new StackAnalyzer(method).analyze()).generate();
+			if(i == 0 && !generated)
+				throw new RuntimeException("wide locals: the StackMapTable was not generated from the frames");
+			if(codeAttribute.getMaxLocals() != maxLocals)
+				throw new RuntimeException("wide locals: max_locals is " + codeAttribute.getMaxLocals() + " instead of " + maxLocals);
+			final CtClass generatedClass = method.getDeclaringClass();
+			final byte[] generatedBytes = generatedClass.toBytecode();
+			new ClassLoader(Test.class.getClassLoader()) {
+				Class<?> define() {
+					return defineClass(generatedClass.getName(), generatedBytes, 0, generatedBytes.length);
+				}
+			}.define().getMethod("generated").invoke(null);
+		}
+	}
+	
+	private static List<String> describeInvocations(Frames frames) {
+		List<String> result = new ArrayList<String>();
+		for(Frame frame : frames)
+			if(frame.decodedOp instanceof DecodedMethodInvocationOp)
+				result.add(((DecodedMethodInvocationOp) frame.decodedOp).getName() + Arrays.toString(DecodedMethodInvocationOp.resolveParametersNames(frame, false)));
+		return result;
+	}
+	
+	@org.junit.Test
+	public void frameOrdinals() throws BadBytecode {
+		System.out.println("frameOrdinals");
+		Frames frames = new StackAnalyzer(getMethod(getCtClass("test.subjects.SimpleSubjects"), "tableswitchBlock")).analyze();
+		List<Frame> expected = new ArrayList<Frame>();
+		for(Frame frame : frames.frames)
+			if(frame != null)
+				expected.add(frame);
+		if(frames.size() != expected.size())
+			throw new RuntimeException(frames.size() + " frames instead of " + expected.size());
+		FrameIterator iterator = frames.iterator();
+		for(int ordinal = 0; ordinal < expected.size(); ordinal++) {
+			if(frames.get(ordinal) != expected.get(ordinal) || iterator.lookAhead() != expected.get(ordinal) || iterator.next() != expected.get(ordinal) || iterator.getOrdinal() != ordinal)
+				throw new RuntimeException("wrong frame at ordinal " + ordinal);
+			if(iterator.isFirst() != (ordinal == 0) || iterator.isLast() != (ordinal == expected.size() - 1))
+				throw new RuntimeException("wrong bounds at ordinal " + ordinal);
+		}
+	}
+	
+	@org.junit.Test
+	@SuppressWarnings("deprecation")
+	public void sortedMarks() throws NotFoundException, BadBytecode {
+		System.out.println("sortedMarks");
+		ClassPool pool = new ClassPool(true);
+		pool.appendClassPath(new LoaderClassPath(Test.class.getClassLoader()));
+		Context context = new Context(getMethod(pool.get("test.subjects.SimpleSubjects"), "simple"));
+		int[] indexes = { 20, 3, 0, 11, 3, 40 };
+		int[] ids = new int[indexes.length];
+		for(int i = 0; i < indexes.length; i++)
+			ids[i] = context.iterator.putMark(indexes[i]);
+		context.iterator.insertGapAt(11, 4, false);
+		context.iterator.insertGapAt(3, 2, false);
+		int[] expected = { 26, 3, 0, 13, 3, 46 };
+		for(int i = 0; i < indexes.length; i++)
+			if(context.iterator.getMark(ids[i]) != expected[i] || context.iterator.marks.get(ids[i]) != expected[i])
+				throw new RuntimeException("mark " + ids[i] + " is at " + context.iterator.getMark(ids[i]) + " instead of " + expected[i]);
+		context.iterator.marks.set(ids[0], 1);
+		if(context.iterator.getMark(ids[0]) != 1 || context.iterator.getMark(ids[5]) != 46 || context.iterator.getNbMarks() != indexes.length)
+			throw new RuntimeException("the mark was not moved");
+		context.iterator.marks.remove(ids[1]);
+		if(!new ArrayList<Integer>(context.iterator.marks).equals(Arrays.asList(1, 0, 13, 3, 46)) || !context.iterator.marks.subList(1, 3).equals(Arrays.asList(0, 13)) || context.iterator.getMark(ids[4]) != 46)
+			throw new RuntimeException("the mark was not removed: " + context.iterator.marks);
+		context.iterator.marks.clear();
+		if(context.iterator.getNbMarks() != 0)
+			throw new RuntimeException("the marks were not cleared");
+	}
+	
+	@org.junit.Test
+	public void reanalysis() throws Exception {
+		System.out.println("reanalysis");
+		ClassPool pool = new ClassPool(true);
+		pool.appendClassPath(new LoaderClassPath(Test.class.getClassLoader()));
+		CtClass clazz = pool.get("test.subjects.SimpleSubjects");
+		for(String name : new String[] { "simpleWithConditionals", "exceptions", "tableswitchBlock", "lookupswitchBlock" }) {
+			for(boolean lazyStacks : new boolean[] { false, true }) {
+				CtMethod method = getMethod(clazz, name);
+				StackAnalyzer analyzer = new StackAnalyzer(method).setLazyStacks(lazyStacks);
+				Frames frames = analyzer.analyze();
+				List<Frame> all = new ArrayList<Frame>();
+				FrameEditor editor = frames.editor();
+				for(Frame frame : frames) {
+					all.add(frame);
+					if(frame.decodedOp instanceof DecodedMethodInvocationOp)
+						editor.insertBefore(frame, new byte[] { Opcode.ICONST_0, Opcode.POP });
+				}
+				editor.apply();
+				int nbFrames = frames.size();
+				if(analyzer.reanalyze() != frames)
+					throw new RuntimeException(name + ": the frames were not updated in place");
+				if(frames.size() <= nbFrames)
+					throw new RuntimeException(name + ": the frames of the inserted code were not spliced");
+				assertReanalyzed(name, frames, method);
+				for(Frame frame : all)
+					if(frames.frames[frame.index] != frame)
+						throw new RuntimeException(name + ": " + frame + " was not kept");
+			}
+		}
+		// between a branch and its target
+		CtMethod method = getMethod(clazz, "simpleWithConditionals");
+		StackAnalyzer analyzer = new StackAnalyzer(method);
+		Frames frames = analyzer.analyze();
+		for(int i = 0; i < frames.size(); i++) {
+			if(frames.get(i).decodedOp instanceof DecodedBranchOp) {
+				frames.editor().insertBefore(frames.get(i + 1), new byte[] { Opcode.ICONST_0, Opcode.POP }).apply();
+				break;
+			}
+		}
+		assertReanalyzed("simpleWithConditionals", analyzer.reanalyze(), method);
+		// changing the stack before a jump
+		for(byte[] inserted : new byte[][] { { Opcode.POP, Opcode.ICONST_5 }, { Opcode.ICONST_3 } }) {
+			CtClass generated = pool.makeClass("test.generated.Reanalysis" + inserted.length);
+			Bytecode code = new Bytecode(generated.getClassFile().getConstPool(), 2, 0);
+			code.addIconst(1);
+			code.addOpcode(Opcode.GOTO);
+			code.addIndex(3);
+			code.addOpcode(Opcode.IRETURN);
+			MethodInfo methodInfo = new MethodInfo(generated.getClassFile().getConstPool(), "jump", "()I");
+			methodInfo.setAccessFlags(AccessFlag.PUBLIC | AccessFlag.STATIC);
+			methodInfo.setCodeAttribute(code.toCodeAttribute());
+			generated.getClassFile().addMethod(methodInfo);
+			method = generated.getDeclaredMethod("jump");
+			analyzer = new StackAnalyzer(method);
+			frames = analyzer.analyze();
+			frames.editor().insertAfter(frames.get(0), inserted).apply();
+			assertReanalyzed("jump", analyzer.reanalyze(), method);
+		}
+	}
+	
+	private static void assertReanalyzed(String name, Frames frames, CtBehavior behavior) throws BadBytecode {
+		Frames expected = new StackAnalyzer(behavior).analyze();
+		if(frames.size() != expected.size())
+			throw new RuntimeException(name + ": " + frames.size() + " frames instead of " + expected.size());
+		for(int i = 0; i < frames.size(); i++) {
+			Frame frame = frames.get(i), other = expected.get(i);
+			if(frame.index != other.index || !frame.toString().equals(other.toString()))
+				throw new RuntimeException(name + ": " + frame + " instead of " + other);
+			if(frame.decodedOp instanceof DecodedBranchOp && ((DecodedBranchOp) frame.decodedOp).getJump() != ((DecodedBranchOp) other.decodedOp).getJump())
+				throw new RuntimeException(name + ": " + frame + " jumps to " + ((DecodedBranchOp) frame.decodedOp).getJump() + " instead of " + ((DecodedBranchOp) other.decodedOp).getJump());
+		}
+	}
+	
+	@org.junit.Test
+	public void stackMapGenerator() throws Exception {
+		System.out.println("stackMapGenerator");
+		ClassPool pool = new ClassPool(true);
+		pool.appendClassPath(new LoaderClassPath(Test.class.getClassLoader()));
+		CtClass clazz = pool.get("test.subjects.SimpleSubjects");
+		for(String name : new String[] { "simpleWithConditionals", "exceptions", "tableswitchBlock", "lookupswitchBlock" }) {
+			CtMethod method = getMethod(clazz, name);
+			StackAnalyzer analyzer = new StackAnalyzer(method);
+			Frames frames = analyzer.analyze();
+			FrameEditor editor = frames.editor();
+			// only between the first branch and its target in simpleWithConditionals, before every frame elsewhere
+			boolean partial = name.equals("simpleWithConditionals");
+			for(int i = 0; i < frames.size(); i++) {
+				if(!partial)
+					editor.insertBefore(frames.get(i), new byte[] { Opcode.ICONST_0, Opcode.POP });
+				else if(frames.get(i).decodedOp instanceof DecodedBranchOp) {
+					editor.insertBefore(frames.get(i + 1), new byte[] { Opcode.ICONST_0, Opcode.POP });
+					break;
+				}
+			}
+			editor.apply();
+			int maxStack = method.getMethodInfo().getCodeAttribute().getMaxStack() + (partial ? 0 : 1);
+			if(!new StackMapGenerator(analyzer.reanalyze()).generate())
+				throw new RuntimeException(name + ": the StackMapTable was not generated from the frames");
+			if(method.getMethodInfo().getCodeAttribute().getMaxStack() != maxStack)
+				throw new RuntimeException(name + ": max_stack is " + method.getMethodInfo().getCodeAttribute().getMaxStack() + " instead of " + maxStack);
+		}
+		final byte[] bytes = clazz.toBytecode();
+		Class<?> edited = new ClassLoader(Test.class.getClassLoader()) {
+			Class<?> define() {
+				return defineClass("test.subjects.SimpleSubjects", bytes, 0, bytes.length);
+			}
+		}.define();
+		Object subject = edited.getDeclaredConstructor().newInstance();
+		edited.getMethod("simpleWithConditionals", String.class, int.class).invoke(subject, "", 1);
+		edited.getMethod("exceptions").invoke(subject);
+		for(int i = 0; i < 8; i++) {
+			edited.getMethod("tableswitchBlock", int.class).invoke(subject, i);
+			edited.getMethod("lookupswitchBlock", int.class).invoke(subject, i);
+		}
+	}
+	
+	private static byte[] readSubject(String name) throws IOException {
+		InputStream in = Test.class.getResourceAsStream("subjects/" + name + ".class");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		for(int read; (read = in.read(buffer)) != -1; )
+			out.write(buffer, 0, read);
+		in.close();
+		return out.toByteArray();
+	}
 }
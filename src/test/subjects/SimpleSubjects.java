@@ -53,6 +53,14 @@ public class SimpleSubjects {
 		classic("", 1, 2L);
 	}
 	
+	public void conditionalArguments(boolean flag) {
+		int myInt = 89;
+		long date = System.currentTimeMillis();
+		String subject = "test";
+		classic(subject, flag ? myInt : myInt, date);
+		classic(subject, flag ? myInt : 0, date);
+	}
+	
 	public void varargs() {
 		int myInt = 89;
 		int myInt2 = 99;